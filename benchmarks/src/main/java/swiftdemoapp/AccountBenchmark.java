@@ -0,0 +1,93 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Depositing into and withdrawing from one account shared by every benchmark
+ * thread. Run with -t to set the number of threads, for example -t 1, -t 4 or
+ * -t max, to see how the balance updates behave under contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountBenchmark {
+
+	private Account account;
+
+	@Setup
+	public void setup() {
+		// Large enough that withdrawals never run out while deposits keep up
+		account = new Account("Rob Parker", "23324037175606447574", Integer.MAX_VALUE);
+	}
+
+	@Benchmark
+	public void addMoney() {
+		account.addMoney(1);
+	}
+
+	@Benchmark
+	public boolean subMoney() {
+		boolean taken = account.subMoney(1);
+		account.addMoney(1);
+		return taken;
+	}
+
+	@Benchmark
+	public int subRandomMoney() {
+		int taken = account.subRandomMoney();
+		account.addMoney(taken);
+		return taken;
+	}
+
+	/**
+	 * Deposits and withdrawals at the same time, as when a bank's sender and
+	 * receiver both work on the same account.
+	 */
+	@Benchmark
+	@Group("depositAndWithdraw")
+	@GroupThreads(1)
+	public void deposit() {
+		account.addMoney(1);
+	}
+
+	@Benchmark
+	@Group("depositAndWithdraw")
+	@GroupThreads(1)
+	public boolean withdraw() {
+		return account.subMoney(1);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding an account by its number in banks of different sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class BankBenchmark {
+
+	// Looked up in turn so the lookups are not all the same account
+	private static final int LOOKUPS = 1024;
+
+	@Param({ "10", "10000", "1000000" })
+	public int accounts;
+
+	private Bank bank;
+	private String[] numbers;
+	private int[] highs;
+	private long[] lows;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		bank = new Bank("BankOfBench", "BANKBNCH", Currency.GBP, "BANKBNCH.Q");
+		for (int i = 0; i < accounts; i++) {
+			bank.openAccount("Holder" + i);
+		}
+		numbers = new String[LOOKUPS];
+		highs = new int[LOOKUPS];
+		lows = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			numbers[i] = bank.getRandomAccount().getNumber();
+			highs[i] = AccountIndex.packHigh(numbers[i], 0, numbers[i].length());
+			lows[i] = AccountIndex.packLow(numbers[i], 0, numbers[i].length());
+		}
+		if (bank.getAccountCount() != accounts) {
+			throw new Exception("Bank has " + bank.getAccountCount() + " accounts, expected " + accounts);
+		}
+	}
+
+	@Benchmark
+	public Account getAccountByAccountNumber(Cursor c) {
+		int i = c.next++ & (LOOKUPS - 1);
+		return bank.getAccountByAccountNumber(numbers[i]);
+	}
+
+	@Benchmark
+	public Account getAccountByPackedNumber(Cursor c) {
+		int i = c.next++ & (LOOKUPS - 1);
+		return bank.getAccountByAccountNumber(highs[i], lows[i]);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building, encoding, checksumming and parsing a SWIFT MT103 message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SWIFTcoderBenchmark {
+
+	private SWIFTcoder coder;
+	private String message;
+	private byte[] messageBytes;
+	private byte[] buffer;
+	private int bodyLength;
+	private final SWIFTview view = new SWIFTview();
+
+	@Setup
+	public void setup() throws Exception {
+		coder = new SWIFTcoder("BANKROBE", "23324037175606447574", "Rob Parker", "BANKGRAH", "13712048205469117971",
+				"Harry Houdini", 1234, Currency.GBP, "ABC", "DEF", 42, 1001);
+		coder.setSendTime(LatencyHistogram.nowMicros());
+		message = coder.getMessage();
+		messageBytes = message.getBytes("US-ASCII");
+		buffer = new byte[coder.getMessageLength()];
+		// Everything before the {5:{CHK: footer is checksummed
+		bodyLength = message.indexOf("{5:");
+	}
+
+	@Benchmark
+	public String getMessage() throws Exception {
+		return coder.getMessage();
+	}
+
+	@Benchmark
+	public int encode() throws Exception {
+		return coder.encode(buffer, 0);
+	}
+
+	@Benchmark
+	public int generateCheckSum() throws Exception {
+		return SWIFTcoder.generateCheckSum(messageBytes, 0, bodyLength, buffer, 0);
+	}
+
+	@Benchmark
+	public SWIFTcoder parseConstructor() throws Exception {
+		return new SWIFTcoder(message);
+	}
+
+	@Benchmark
+	public long viewDestination() throws Exception {
+		SWIFTview v = view.wrap(message);
+		return v.getDestAccountLow() + v.getAmmount();
+	}
+
+	@Benchmark
+	public long viewDestinationBytes() throws Exception {
+		SWIFTview v = view.wrap(messageBytes, 0, messageBytes.length);
+		return v.getDestAccountLow() + v.getAmmount();
+	}
+}
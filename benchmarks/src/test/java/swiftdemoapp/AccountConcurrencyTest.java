@@ -0,0 +1,156 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that no deposit or withdrawal is lost when many threads update the
+ * same account at once, and that the balance never goes below 0.
+ */
+public class AccountConcurrencyTest {
+	private static final int THREADS = 8;
+	private static final int OPERATIONS = 200000;
+	private static final int START = 1000;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void depositsAreNotLost() throws Exception {
+		Account account = new Account("Rob Parker", "23324037175606447574", 0);
+		runThreads(t -> {
+			for (int i = 0; i < OPERATIONS; i++) {
+				account.addMoney(1);
+			}
+			return 0;
+		});
+		assertEquals((long) THREADS * OPERATIONS, account.getBalance());
+	}
+
+	@Test
+	public void mixedUpdatesOnHeapAccount() throws Exception {
+		mixedUpdates(new Account("Rob Parker", "23324037175606447574", START));
+	}
+
+	@Test
+	public void mixedUpdatesOnMappedAccount() throws Exception {
+		MappedAccountStore store = new MappedAccountStore(dir.resolve("TEST.ledger"), 16);
+		try {
+			mixedUpdates(store.add("Rob Parker", "23324037175606447574", START));
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Runs deposits, withdrawals and random withdrawals from every thread while
+	 * another thread watches the balance. The balance is kept small so
+	 * withdrawals often find too little money and must not take it anyway.
+	 */
+	private void mixedUpdates(Account account) throws Exception {
+		AtomicBoolean negative = new AtomicBoolean(false);
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread watcher = new Thread(() -> {
+			while (running.get()) {
+				if (account.getBalance() < 0) {
+					negative.set(true);
+				}
+			}
+		});
+		watcher.start();
+		long change;
+		try {
+			change = runThreads(t -> {
+				SplittableRandom random = new SplittableRandom(t);
+				long net = 0;
+				for (int i = 0; i < OPERATIONS; i++) {
+					int amount = random.nextInt(1, 100);
+					switch (random.nextInt(3)) {
+					case 0:
+						account.addMoney(amount);
+						net += amount;
+						break;
+					case 1:
+						if (account.subMoney(amount)) {
+							net -= amount;
+						}
+						break;
+					default:
+						net -= account.subRandomMoney(random);
+						break;
+					}
+				}
+				return net;
+			});
+		} finally {
+			running.set(false);
+			watcher.join();
+		}
+		assertEquals(START + change, account.getBalance());
+		assertTrue(account.getBalance() >= 0);
+		assertFalse(negative.get(), "Balance went below 0");
+	}
+
+	private interface Worker {
+		long run(int thread) throws Exception;
+	}
+
+	/**
+	 * Starts every thread at once and returns the sum of what they return.
+	 */
+	private static long runThreads(Worker worker) throws Exception {
+		CountDownLatch ready = new CountDownLatch(1);
+		long[] results = new long[THREADS];
+		Exception[] failures = new Exception[THREADS];
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				try {
+					ready.await();
+					results[id] = worker.run(id);
+				} catch (Exception e) {
+					failures[id] = e;
+				}
+			});
+			threads[t].start();
+		}
+		ready.countDown();
+		long total = 0;
+		for (int t = 0; t < THREADS; t++) {
+			threads[t].join();
+			if (failures[t] != null) {
+				throw failures[t];
+			}
+			total += results[t];
+		}
+		return total;
+	}
+}
@@ -18,9 +18,9 @@ limitations under the License.
 */
 package swiftdemoapp;
 
-import java.util.Random;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
 
 // Assisted by WCA@IBM
 // Latest GenAI contribution: ibm/granite-8b-code-instruct
@@ -32,13 +32,13 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class Account {
 
-	// As multiple threads could be trying to update the balance we use a lock to
-	// make sure we get no issues.
-	private final ReadWriteLock lock = new ReentrantReadWriteLock();
-
-	private String name;
-	private String number;
-	private int balance;
+	private final String name;
+	private final String number;
+	// As multiple threads could be trying to update the balance it is only
+	// changed with atomic operations. Withdrawals use compare and set so the
+	// balance never goes below 0. The fields are null if a subclass holds the
+	// account's details.
+	private final AtomicLong balance;
 
 	// Assisted by WCA@IBM
 	// Latest GenAI contribution: ibm/granite-8b-code-instruct
@@ -52,52 +52,90 @@ public class Account {
 	public Account(String name, String number) {
 		this.name = name;
 		this.number = number;
-		this.balance = 1000;
+		this.balance = new AtomicLong(1000);
 	}
 
 	public Account(String name, String number, int startingBalance) {
 		this.name = name;
 		this.number = number;
-		this.balance = startingBalance;
+		this.balance = new AtomicLong(startingBalance);
+	}
+
+	/**
+	 * Creates an account whose name, number and balance are kept by a subclass,
+	 * which must override getName, getNumber, loadBalance, compareAndSetBalance
+	 * and addToBalance.
+	 */
+	protected Account() {
+		this.name = null;
+		this.number = null;
+		this.balance = null;
+	}
+
+	/**
+	 * Reads the balance atomically.
+	 * 
+	 * @return The balance.
+	 */
+	protected long loadBalance() {
+		return balance.get();
+	}
+
+	/**
+	 * Atomically sets the balance if it still has the expected value.
+	 * 
+	 * @param expected The balance expected.
+	 * @param update   The new balance.
+	 * @return True if the balance was set.
+	 */
+	protected boolean compareAndSetBalance(long expected, long update) {
+		return balance.compareAndSet(expected, update);
+	}
+
+	/**
+	 * Atomically adds to the balance.
+	 * 
+	 * @param delta The amount to add.
+	 */
+	protected void addToBalance(long delta) {
+		balance.addAndGet(delta);
 	}
 
 	/**
-	 * Returns the name of the account holder under lock.
+	 * Sets the balance, for restoring it from a journal or snapshot. Only to be
+	 * used while nothing else is changing the balance.
+	 * 
+	 * @param balance The new balance.
+	 */
+	void restoreBalance(long balance) {
+		addToBalance(balance - loadBalance());
+	}
+
+	/**
+	 * Returns the name of the account holder.
 	 * 
 	 * @return The name of the account holder.
 	 */
 	public String getName() {
-		String myname;
-		lock.readLock().lock();
-		myname = name;
-		lock.readLock().unlock();
-		return myname;
+		return name;
 	}
 
 	/**
-	 * Returns the account number under lock.
+	 * Returns the account number.
 	 * 
 	 * @return The account number.
 	 */
 	public String getNumber() {
-		String mynum;
-		lock.readLock().lock();
-		mynum = number;
-		lock.readLock().unlock();
-		return mynum;
+		return number;
 	}
 
 	/**
-	 * Returns the current balance under lock.
+	 * Returns the current balance.
 	 * 
 	 * @return current balance value
 	 */
-	public int getBalance() {
-		int mybal;
-		lock.readLock().lock();
-		mybal = balance;
-		lock.readLock().unlock();
-		return mybal;
+	public long getBalance() {
+		return loadBalance();
 	}
 
 	/**
@@ -106,14 +144,11 @@ public class Account {
 	 * @param amount The amount to deposit.
 	 */
 	public void addMoney(int add) {
-		lock.writeLock().lock();
 		if (add < 0) {
 			System.out.println("addMoney - unable as add negative");
-			lock.writeLock().unlock();
 			return;
 		}
-		balance += add;
-		lock.writeLock().unlock();
+		addToBalance(add);
 	}
 
 	/**
@@ -123,48 +158,64 @@ public class Account {
 	 * @return True if it was succesfull.
 	 */
 	public boolean subMoney(int add) {
-		lock.writeLock().lock();
 		if (add < 0) {
 			System.out.println("subMoney - unable as add negative");
-			lock.writeLock().unlock();
-			return false;
-		}
-		if (balance - add < 0) {
-			lock.writeLock().unlock();
 			return false;
 		}
-		balance -= add;
-		lock.writeLock().unlock();
+		long current;
+		do {
+			current = loadBalance();
+			if (current - add < 0) {
+				return false;
+			}
+		} while (!compareAndSetBalance(current, current - add));
 		return true;
 	}
 
 	/**
 	 * Subtracts a random amount of money from the account.
-	 * The random value can be between 1 - current balance.
+	 * The random value can be between 1 - current balance, capped at the largest
+	 * amount a message can carry.
 	 * 
 	 * @return The amount deducted.
 	 */
 	public int subRandomMoney() {
-		Random random = new Random();
-		int lost = 0;
-		lock.writeLock().lock();
-		if (balance != 0) {
-			// Only subtract if balance is bigger than 0
-			lost = random.nextInt(balance + 1);
-
-			if (balance - lost < 0) {
-				lost = balance;
+		return subRandomMoney(ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Subtracts a random amount of money from the account, picked with the given
+	 * generator. The random value can be between 1 - current balance, capped at
+	 * the largest amount a message can carry.
+	 * 
+	 * The generator is drawn from exactly once, even if the account is empty,
+	 * and the fraction drawn is scaled to whatever the balance is, so other
+	 * threads changing the balance never change how much of the generator is
+	 * used.
+	 * 
+	 * @param random The generator to pick the amount with.
+	 * @return The amount deducted.
+	 */
+	public int subRandomMoney(RandomGenerator random) {
+		double fraction = random.nextDouble();
+		while (true) {
+			long current = loadBalance();
+			if (current == 0) {
+				// Only subtract if balance is bigger than 0
+				return 0;
+			}
+			int lost = (int) (fraction * (Math.min(current, Integer.MAX_VALUE) + 1));
+			if (compareAndSetBalance(current, current - lost)) {
+				return lost;
 			}
-			balance -= lost;
+			// The balance changed under us, try again with the new balance
 		}
-		lock.writeLock().unlock();
-		return lost;
 	}
 
 	/**
 	 * Simple debug function that prints out the details.
 	 */
 	public void printMe() {
-		System.out.println("name[" + name + "] number[" + number + "] balance[" + balance + ",00]");
+		System.out.println("name[" + getName() + "] number[" + getNumber() + "] balance[" + loadBalance() + ",00]");
 	}
 }
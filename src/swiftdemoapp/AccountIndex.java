@@ -0,0 +1,216 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * An open addressing hash table mapping account numbers to positions in a
+ * Bank's account list. Account numbers are 20 decimal digits which are packed
+ * into two primitives, the first 2 digits as "high" and the last 18 as "low",
+ * so lookups hash no Strings and create no objects.
+ * 
+ * Not thread safe for writes. Readers may use the index once it is no longer
+ * being changed, or with their own synchronization.
+ */
+public class AccountIndex {
+
+	/**
+	 * Number of digits in an account number.
+	 */
+	public static final int ACCOUNT_DIGITS = 20;
+	private static final int HIGH_DIGITS = 2;
+	/**
+	 * One more than the largest high and low parts of an account number.
+	 */
+	public static final int HIGH_LIMIT = 100;
+	public static final long LOW_LIMIT = 1_000_000_000_000_000_000L;
+
+	private long[] lows;
+	private byte[] highs;
+	// Position + 1 of the account, 0 marks an empty slot
+	private int[] positions;
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * Creates an index sized for the given number of accounts.
+	 * 
+	 * @param expected The number of accounts expected.
+	 */
+	public AccountIndex(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		lows = new long[capacity];
+		highs = new byte[capacity];
+		positions = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Returns the first 2 digits of an account number as a number.
+	 * 
+	 * @param number The account number.
+	 * @param start  Where the account number starts.
+	 * @param end    Where the account number ends.
+	 * @return The high part or -1 if the number is not 20 digits.
+	 */
+	public static int packHigh(CharSequence number, int start, int end) {
+		if (end - start != ACCOUNT_DIGITS) {
+			return -1;
+		}
+		return (int) digits(number, start, start + HIGH_DIGITS);
+	}
+
+	/**
+	 * Returns the last 18 digits of an account number as a number.
+	 * 
+	 * @param number The account number.
+	 * @param start  Where the account number starts.
+	 * @param end    Where the account number ends.
+	 * @return The low part or -1 if the number is not 20 digits.
+	 */
+	public static long packLow(CharSequence number, int start, int end) {
+		if (end - start != ACCOUNT_DIGITS) {
+			return -1;
+		}
+		return digits(number, start + HIGH_DIGITS, end);
+	}
+
+	/**
+	 * Turns a packed account number back into its 20 digits.
+	 * 
+	 * @param high The high part of the account number.
+	 * @param low  The low part of the account number.
+	 * @return The account number.
+	 */
+	public static String unpack(int high, long low) {
+		char[] number = new char[ACCOUNT_DIGITS];
+		for (int i = ACCOUNT_DIGITS - 1; i >= HIGH_DIGITS; i--) {
+			number[i] = (char) ('0' + (low % 10));
+			low /= 10;
+		}
+		for (int i = HIGH_DIGITS - 1; i >= 0; i--) {
+			number[i] = (char) ('0' + (high % 10));
+			high /= 10;
+		}
+		return new String(number);
+	}
+
+	private static long digits(CharSequence s, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int d = s.charAt(i) - '0';
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	private static int hash(int high, long low) {
+		long h = low * 0x9E3779B97F4A7C15L + high;
+		h ^= h >>> 32;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 29));
+	}
+
+	/**
+	 * Adds or replaces the position of an account number.
+	 * 
+	 * @param high     The high part of the account number.
+	 * @param low      The low part of the account number.
+	 * @param position The position of the account.
+	 * @return The position it replaced or -1 if it was not in the index.
+	 */
+	public int put(int high, long low, int position) {
+		if (high < 0 || low < 0 || position < 0) {
+			throw new IllegalArgumentException("Invalid account key or position.");
+		}
+		if ((size + 1) * 2 > positions.length) {
+			grow();
+		}
+		int i = hash(high, low) & mask;
+		while (positions[i] != 0) {
+			if (lows[i] == low && highs[i] == high) {
+				int previous = positions[i] - 1;
+				positions[i] = position + 1;
+				return previous;
+			}
+			i = (i + 1) & mask;
+		}
+		lows[i] = low;
+		highs[i] = (byte) high;
+		positions[i] = position + 1;
+		size++;
+		return -1;
+	}
+
+	/**
+	 * Returns the position of an account number.
+	 * 
+	 * @param high The high part of the account number.
+	 * @param low  The low part of the account number.
+	 * @return The position or -1 if it is not in the index.
+	 */
+	public int get(int high, long low) {
+		if (high < 0 || low < 0) {
+			return -1;
+		}
+		int i = hash(high, low) & mask;
+		int p;
+		while ((p = positions[i]) != 0) {
+			if (lows[i] == low && highs[i] == high) {
+				return p - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of account numbers held.
+	 * 
+	 * @return The size.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] oldLows = lows;
+		byte[] oldHighs = highs;
+		int[] oldPositions = positions;
+		allocate(oldPositions.length * 2);
+		for (int j = 0; j < oldPositions.length; j++) {
+			if (oldPositions[j] == 0) {
+				continue;
+			}
+			int i = hash(oldHighs[j], oldLows[j]) & mask;
+			while (positions[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			lows[i] = oldLows[j];
+			highs[i] = oldHighs[j];
+			positions[i] = oldPositions[j];
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of account numbers that many threads can add to at once, used to make
+ * sure numbers generated in parallel are unique. It is an open addressing hash
+ * table of the low part of each packed account number, see AccountIndex, and
+ * a number is claimed with a single compare and set.
+ * 
+ * Only the low part is kept, so two numbers that differ just in their first 2
+ * digits are treated as the same. That only means a new number is drawn again,
+ * which with 10^18 possible low parts is very rare.
+ */
+class AccountNumberSet {
+	// Low part + 1 of each number, 0 marks an empty slot
+	private final AtomicLongArray slots;
+	private final int mask;
+
+	/**
+	 * Creates a set sized for the given number of account numbers, which can
+	 * not be exceeded.
+	 * 
+	 * @param expected The most numbers that will be added.
+	 * @throws Exception If the set would be too large.
+	 */
+	AccountNumberSet(long expected) throws Exception {
+		if (expected > 1 << 29) {
+			throw new Exception("Too many accounts to check at once, " + expected);
+		}
+		// Keep the table no more than half full
+		int capacity = Integer.highestOneBit((int) Math.max(expected, 8) * 2 - 1) << 1;
+		slots = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds an account number.
+	 * 
+	 * @param low The low part of the account number.
+	 * @return True if it was added, false if it was already in the set.
+	 */
+	boolean add(long low) {
+		long key = low + 1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int i = (int) (h ^ (h >>> 32)) & mask;
+		while (true) {
+			long current = slots.get(i);
+			if (current == key) {
+				return false;
+			}
+			if (current == 0) {
+				if (slots.compareAndSet(i, 0, key)) {
+					return true;
+				}
+				// Another thread took the slot, it may have added the same number
+				continue;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+}
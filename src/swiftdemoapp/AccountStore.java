@@ -0,0 +1,66 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * Interface for the storage that holds a Bank's accounts. Accounts are added
+ * while the bank is being set up and can then be looked up by position or by
+ * packed account number, see AccountIndex.
+ */
+public interface AccountStore {
+	/**
+	 * Adds a new account.
+	 * 
+	 * @param name            Account holder name.
+	 * @param number          20 digit account number.
+	 * @param startingBalance Starting balance.
+	 * @return The new account.
+	 * @throws Exception If the account could not be stored.
+	 */
+	public Account add(String name, String number, int startingBalance) throws Exception;
+
+	/**
+	 * Returns the number of accounts held.
+	 * 
+	 * @return Number of accounts.
+	 */
+	public int size();
+
+	/**
+	 * Returns the account at the given position.
+	 * 
+	 * @param position Position between 0 and size - 1.
+	 * @return The account.
+	 */
+	public Account get(int position);
+
+	/**
+	 * Returns the account with the given packed account number.
+	 * 
+	 * @param high First 2 digits of the account number.
+	 * @param low  Last 18 digits of the account number.
+	 * @return The account or null.
+	 */
+	public Account find(int high, long low);
+
+	/**
+	 * Makes sure any account changes are saved and releases the storage.
+	 */
+	public void close();
+}
@@ -0,0 +1,346 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records a one line summary of every payment deposited without making the
+ * depositing thread wait for the console or a disk.
+ * 
+ * Each summary is written straight into one of a fixed number of slots made
+ * when the log is created, so recording a payment creates no objects. A
+ * background thread takes the summaries from the slots in order and writes
+ * them out in large batches, either to standard out or to a file that is
+ * rolled over when it reaches a set size.
+ * 
+ * If every slot is full the policy decides whether the payment's summary is
+ * dropped and counted, or the depositing thread waits for a free slot.
+ */
+public class AuditLog {
+
+	/**
+	 * What to do with a summary when every slot is full.
+	 */
+	public enum Policy {
+		/**
+		 * Throw the summary away and count it, so deposits never wait.
+		 */
+		DROP,
+		/**
+		 * Wait until the writer frees a slot, so no summary is lost.
+		 */
+		BLOCK;
+
+		/**
+		 * Converts a given String into the policy enum.
+		 * 
+		 * @param string The policy string to convert
+		 * @return A policy enum.
+		 * @throws Exception
+		 */
+		public static Policy parse(String string) throws Exception {
+			for (Policy p : values()) {
+				if (p.name().equalsIgnoreCase(string)) {
+					return p;
+				}
+			}
+			throw new Exception("Unknown audit log policy " + string);
+		}
+	}
+
+	// The longest summary kept, longer ones are cut short
+	static final int SLOT_SIZE = 160;
+	// Bytes written out at once by the writer
+	private static final int WRITE_BUFFER = 64 * 1024;
+	// How long the writer sleeps when there is nothing to write
+	private static final long PARK_IDLE = TimeUnit.MILLISECONDS.toNanos(1);
+	// How long to wait between attempts to find a free slot in BLOCK mode
+	private static final long PARK_FULL = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Policy policy;
+	private final int mask;
+	// Each slot's summary and length. A slot's sequence number says whether it
+	// is free to write or ready to read, in the same way as BoundedRingQueue.
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	// Only touched by the writer thread
+	private long head = 0;
+
+	private final LongAdder recorded = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	// Where the summaries go. If file is null they go to out and are never
+	// rolled over.
+	private final Path file;
+	private final long maxFileBytes;
+	private final int maxFiles;
+	private OutputStream out;
+	private long fileBytes = 0;
+
+	private final Thread writer;
+	private volatile boolean stop = false;
+
+	/**
+	 * Creates an audit log that writes to standard out.
+	 * 
+	 * @param capacity The number of summaries that can wait to be written.
+	 * @param policy   What to do when they are all in use.
+	 */
+	public AuditLog(int capacity, Policy policy) {
+		this(capacity, policy, null, 0, 0);
+	}
+
+	/**
+	 * Creates an audit log that writes to a file. When the file reaches
+	 * maxFileBytes it is renamed with a .1 suffix, any older files move up one
+	 * number and a new file is started. Only maxFiles old files are kept.
+	 * 
+	 * @param capacity     The number of summaries that can wait to be written.
+	 * @param policy       What to do when they are all in use.
+	 * @param file         The file to write to, or null for standard out.
+	 * @param maxFileBytes The size at which the file is rolled over.
+	 * @param maxFiles     The number of rolled over files to keep.
+	 */
+	public AuditLog(int capacity, Policy policy, Path file, long maxFileBytes, int maxFiles) {
+		if (capacity < 2) {
+			capacity = 2;
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.policy = policy;
+		mask = size - 1;
+		slots = new byte[size][SLOT_SIZE];
+		lengths = new int[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.file = file;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		writer = new Thread(this::write, "Audit log writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the file, if there is one, and starts the writer thread.
+	 * 
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public void start() throws IOException {
+		if (file == null) {
+			out = System.out;
+		} else {
+			Path parent = file.toAbsolutePath().getParent();
+			if (parent != null) {
+				Files.createDirectories(parent);
+			}
+			fileBytes = Files.exists(file) ? Files.size(file) : 0;
+			out = new FileOutputStream(file.toFile(), true);
+		}
+		writer.start();
+	}
+
+	/**
+	 * Records the summary of the message a view is wrapping.
+	 * 
+	 * @param v View of the SWIFT MT103 message.
+	 * @return False if the summary was dropped because the log was full.
+	 */
+	public boolean record(SWIFTview v) {
+		return record(v, null, 0);
+	}
+
+	/**
+	 * Records a summary already made with SWIFTview.summarize, for a payment
+	 * whose summary could only be recorded after the message moved on. Only
+	 * SLOT_SIZE bytes of it are kept.
+	 * 
+	 * @param summary Buffer holding the summary as ASCII.
+	 * @param length  The length of the summary.
+	 * @return False if the summary was dropped because the log was full.
+	 */
+	public boolean record(byte[] summary, int length) {
+		return record(null, summary, length);
+	}
+
+	private boolean record(SWIFTview v, byte[] summary, int summaryLength) {
+		while (true) {
+			long pos = tail.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					byte[] slot = slots[index];
+					int length = 0;
+					try {
+						if (v != null) {
+							length = v.summarize(slot, 0);
+						} else {
+							length = Math.min(summaryLength, slot.length);
+							System.arraycopy(summary, 0, slot, 0, length);
+						}
+						if (length == slot.length) {
+							length--;
+						}
+						slot[length++] = '\n';
+					} finally {
+						// Always hand the slot to the writer, even if empty, so it is
+						// never left waiting on it
+						lengths[index] = length;
+						sequences.set(index, pos + 1);
+					}
+					recorded.increment();
+					return true;
+				}
+			} else if (diff < 0) {
+				// Every slot is waiting to be written
+				if (policy == Policy.DROP || stop) {
+					dropped.increment();
+					return false;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(PARK_FULL);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of summaries recorded.
+	 * 
+	 * @return Summaries recorded.
+	 */
+	public long getRecorded() {
+		return recorded.sum();
+	}
+
+	/**
+	 * Returns the number of summaries dropped because the log was full.
+	 * 
+	 * @return Summaries dropped.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Writes out every summary already recorded, stops the writer and closes the
+	 * file.
+	 */
+	public void close() {
+		stop = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (file != null && out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		System.out.println("Audit log: recorded[" + getRecorded() + "] dropped[" + getDropped() + "]");
+	}
+
+	/**
+	 * The writer thread. Copies as many waiting summaries as fit into one buffer,
+	 * frees their slots and writes the buffer out, until stopped and empty.
+	 */
+	private void write() {
+		byte[] buffer = new byte[WRITE_BUFFER];
+		while (true) {
+			int length = 0;
+			while (length + SLOT_SIZE <= buffer.length) {
+				int index = (int) head & mask;
+				if (sequences.get(index) != head + 1) {
+					break;
+				}
+				int size = lengths[index];
+				System.arraycopy(slots[index], 0, buffer, length, size);
+				length += size;
+				sequences.set(index, head + mask + 1);
+				head++;
+			}
+			if (length > 0) {
+				try {
+					output(buffer, length);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			try {
+				out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (stop && sequences.get((int) head & mask) != head + 1) {
+				return;
+			}
+			LockSupport.parkNanos(this, PARK_IDLE);
+		}
+	}
+
+	private void output(byte[] buffer, int length) throws IOException {
+		if (file != null && fileBytes > 0 && fileBytes + length > maxFileBytes) {
+			roll();
+		}
+		out.write(buffer, 0, length);
+		fileBytes += length;
+	}
+
+	/**
+	 * Moves the current file to .1, .1 to .2 and so on, deleting the oldest, and
+	 * starts a new file.
+	 */
+	private void roll() throws IOException {
+		out.close();
+		String name = file.toString();
+		Files.deleteIfExists(Paths.get(name + "." + maxFiles));
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			Path from = Paths.get(name + "." + i);
+			if (Files.exists(from)) {
+				Files.move(from, Paths.get(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if (maxFiles > 0) {
+			Files.move(file, Paths.get(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.delete(file);
+		}
+		out = new FileOutputStream(file.toFile(), true);
+		fileBytes = 0;
+	}
+}
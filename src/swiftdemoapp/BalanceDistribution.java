@@ -0,0 +1,103 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * How the starting balances of generated accounts are spread. Written in a
+ * configuration file as one of:
+ * - "fixed:<balance>", every account starts with the same balance.
+ * - "uniform:<min>:<max>", any balance from min to max is equally likely.
+ * - "normal:<mean>:<deviation>", balances follow a bell curve.
+ * - "exponential:<mean>", most balances are small and a few are large.
+ * Balances are never below 0.
+ */
+public class BalanceDistribution {
+	private enum Shape {
+		FIXED, UNIFORM, NORMAL, EXPONENTIAL
+	}
+
+	private final Shape shape;
+	private final double a;
+	private final double b;
+
+	private BalanceDistribution(Shape shape, double a, double b) {
+		this.shape = shape;
+		this.a = a;
+		this.b = b;
+	}
+
+	/**
+	 * Converts a given String into a balance distribution.
+	 * 
+	 * @param string The distribution string to convert, for example
+	 *               "uniform:0:2000".
+	 * @return A balance distribution.
+	 * @throws Exception If the string is not a known distribution.
+	 */
+	public static BalanceDistribution parse(String string) throws Exception {
+		String[] parts = string.trim().split(":");
+		try {
+			if (parts[0].equalsIgnoreCase("fixed") && parts.length == 2) {
+				return new BalanceDistribution(Shape.FIXED, Double.parseDouble(parts[1]), 0);
+			} else if (parts[0].equalsIgnoreCase("uniform") && parts.length == 3) {
+				double min = Double.parseDouble(parts[1]);
+				double max = Double.parseDouble(parts[2]);
+				if (max < min) {
+					throw new Exception("Uniform balance maximum is less than its minimum in " + string);
+				}
+				return new BalanceDistribution(Shape.UNIFORM, min, max);
+			} else if (parts[0].equalsIgnoreCase("normal") && parts.length == 3) {
+				return new BalanceDistribution(Shape.NORMAL, Double.parseDouble(parts[1]),
+						Double.parseDouble(parts[2]));
+			} else if (parts[0].equalsIgnoreCase("exponential") && parts.length == 2) {
+				return new BalanceDistribution(Shape.EXPONENTIAL, Double.parseDouble(parts[1]), 0);
+			}
+		} catch (NumberFormatException e) {
+			throw new Exception("Bad number in balance distribution " + string);
+		}
+		throw new Exception("Unknown balance distribution " + string);
+	}
+
+	/**
+	 * Returns a starting balance drawn from this distribution.
+	 * 
+	 * @param random The source of randomness.
+	 * @return The balance.
+	 */
+	public int next(RandomGenerator random) {
+		double balance;
+		switch (shape) {
+		case UNIFORM:
+			balance = a + random.nextDouble() * (b - a + 1);
+			break;
+		case NORMAL:
+			balance = a + random.nextGaussian() * b;
+			break;
+		case EXPONENTIAL:
+			balance = -a * Math.log(1 - random.nextDouble());
+			break;
+		default:
+			balance = a;
+			break;
+		}
+		return (int) Math.max(0, Math.min(Math.floor(balance), Integer.MAX_VALUE));
+	}
+}
@@ -18,22 +18,61 @@ limitations under the License.
 */
 package swiftdemoapp;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.random.RandomGenerator;
 
-public class Bank {
+public class Bank implements BankMBean {
 	private String name;
 	private String SWIFTName;
-	private ArrayList<Account> accounts;
+	private AccountStore accounts;
 	private Currency defaultCur;
 	private String qName;
 	private String branchCode;
+	// Payments sent to this bank and not yet deposited, updated by the senders
+	// and receivers in this process
+	private final LongAdder inFlight = new LongAdder();
+	// Flow control: payments in flight at which senders hold back, 0 for no
+	// limit, and the number it must fall to before they carry on.
+	private volatile long highWater = 0;
+	private volatile long lowWater = 0;
+	private final AtomicBoolean congested = new AtomicBoolean(false);
+	private final LongAdder congestionEvents = new LongAdder();
+	// Signalled when the payments in flight fall to 0 while a thread waits in
+	// awaitDrained. The count is only summed on each arrival while one waits.
+	private final ReentrantLock drainLock = new ReentrantLock();
+	private final Condition drained = drainLock.newCondition();
+	private volatile int drainWaiters = 0;
+	// Every change to the balances is appended to this, if set
+	private Journal journal = null;
+	// Journal position the balances were restored from a snapshot at, -1 if the
+	// snapshot was taken while payments were being made or there was none
+	private long snapshotPosition = -1;
+	// Picks the branch code and new account numbers, only used by the thread
+	// opening accounts
+	private final SplittableRandom random;
+
+	// Accounts openAccounts generates at once, bounding the memory it uses, and
+	// the fewest handed to each fork join task.
+	private static final int OPEN_BLOCK = 1 << 20;
+	private static final int OPEN_SPLIT = 4096;
 
 	/**
 	 * Returns the IBM MQ Queue associated with this bank.
 	 * 
 	 * @return Queue the bank will get SWIFT Messages from.
 	 */
+	@Override
 	public String getqName() {
 		return qName;
 	}
@@ -48,15 +87,49 @@ public class Bank {
 	 * @throws Exception
 	 */
 	public Bank(String name, String swiftname, Currency cur, String qname) throws Exception {
+		this(name, swiftname, cur, qname, new HeapAccountStore());
+	}
+
+	/**
+	 * Creates a Bank object that keeps its accounts in the given store. The store
+	 * may already hold accounts, for example a ledger file from a previous run.
+	 * 
+	 * @param name      Name of bank
+	 * @param swiftname the SWIFT name of the bank. Must be 8 characters.
+	 * @param cur       The currency of the bank.
+	 * @param qname     The Name of the IBM MQ queue this bank will monitor.
+	 * @param store     Where the bank's accounts are kept.
+	 * @throws Exception
+	 */
+	public Bank(String name, String swiftname, Currency cur, String qname, AccountStore store) throws Exception {
+		this(name, swiftname, cur, qname, store, new SplittableRandom());
+	}
+
+	/**
+	 * Creates a Bank object that keeps its accounts in the given store and picks
+	 * its branch code and new account numbers with the given generator, so the
+	 * same generator gives the same bank.
+	 * 
+	 * @param name      Name of bank
+	 * @param swiftname the SWIFT name of the bank. Must be 8 characters.
+	 * @param cur       The currency of the bank.
+	 * @param qname     The Name of the IBM MQ queue this bank will monitor.
+	 * @param store     Where the bank's accounts are kept.
+	 * @param random    The bank's generator, see WorkloadRandom.
+	 * @throws Exception
+	 */
+	public Bank(String name, String swiftname, Currency cur, String qname, AccountStore store,
+			SplittableRandom random) throws Exception {
 		this.name = name;
 		this.SWIFTName = swiftname;
 		if (swiftname.length() != 8) {
 			throw new Exception("Swift name must be 8 characters for the BIC.");
 		}
 		this.defaultCur = cur;
-		accounts = new ArrayList<Account>();
+		accounts = store;
 		this.qName = qname;
-		branchCode = generateBranchCode();
+		this.random = random;
+		branchCode = generateBranchCode(random);
 	}
 
 	/**
@@ -68,10 +141,21 @@ public class Bank {
 		return branchCode;
 	}
 
+	/**
+	 * Sets the branch code, for restoring a bank from a snapshot.
+	 * 
+	 * @param branchCode The branch code.
+	 */
+	void setBranchCode(String branchCode) {
+		this.branchCode = branchCode;
+	}
+
+	@Override
 	public String getName() {
 		return name;
 	}
 
+	@Override
 	public String getSWIFTName() {
 		return SWIFTName;
 	}
@@ -80,6 +164,160 @@ public class Bank {
 		return defaultCur;
 	}
 
+	/**
+	 * Returns the number of accounts registered with this bank.
+	 * 
+	 * @return Number of accounts.
+	 */
+	@Override
+	public int getAccountCount() {
+		return accounts.size();
+	}
+
+	@Override
+	public long getTotalBalance() {
+		long total = 0;
+		int size = accounts.size();
+		for (int i = 0; i < size; i++) {
+			total += accounts.get(i).getBalance();
+		}
+		return total;
+	}
+
+	@Override
+	public long getInFlight() {
+		return inFlight.sum();
+	}
+
+	/**
+	 * Sets how many payments may be in flight to this bank before senders hold
+	 * back, see isCongested.
+	 * 
+	 * @param highWater Payments in flight at which the bank becomes congested, 0
+	 *                  for no limit.
+	 * @param lowWater  Payments in flight the bank must fall to before it is no
+	 *                  longer congested.
+	 */
+	public void setFlowControl(long highWater, long lowWater) {
+		this.lowWater = Math.min(Math.max(lowWater, 0), highWater);
+		this.highWater = highWater;
+	}
+
+	/**
+	 * Returns whether the payments in flight to this bank have reached its
+	 * high-water mark and not yet fallen back to its low-water mark. Its
+	 * receiver lowers the count as it takes each payment from the queue, so
+	 * this is how far the receiver is behind the senders.
+	 * 
+	 * @return True if senders should hold back.
+	 */
+	@Override
+	public boolean isCongested() {
+		long high = highWater;
+		if (high <= 0) {
+			return false;
+		}
+		long depth = inFlight.sum();
+		if (congested.get()) {
+			if (depth <= lowWater) {
+				congested.compareAndSet(true, false);
+			}
+		} else if (depth >= high && congested.compareAndSet(false, true)) {
+			congestionEvents.increment();
+		}
+		return congested.get();
+	}
+
+	@Override
+	public long getCongestionEvents() {
+		return congestionEvents.sum();
+	}
+
+	/**
+	 * Counts a payment sent to this bank.
+	 */
+	public void paymentSent() {
+		inFlight.increment();
+	}
+
+	/**
+	 * Stops counting a payment that failed to be sent to this bank.
+	 */
+	public void paymentNotSent() {
+		inFlight.decrement();
+		if (drainWaiters > 0) {
+			signalIfDrained();
+		}
+	}
+
+	/**
+	 * Counts a payment taken from this bank's queue, whether or not it could be
+	 * deposited.
+	 */
+	public void paymentArrived() {
+		inFlight.decrement();
+		if (drainWaiters > 0) {
+			signalIfDrained();
+		}
+	}
+
+	/**
+	 * Counts several payments taken from this bank's queue at once, for example
+	 * a batch once it is committed.
+	 * 
+	 * @param count The number of payments.
+	 */
+	public void paymentsArrived(int count) {
+		if (count <= 0) {
+			return;
+		}
+		inFlight.add(-count);
+		if (drainWaiters > 0) {
+			signalIfDrained();
+		}
+	}
+
+	private void signalIfDrained() {
+		if (inFlight.sum() <= 0) {
+			drainLock.lock();
+			try {
+				drained.signalAll();
+			} finally {
+				drainLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every payment sent to this bank has arrived or the timeout
+	 * passes. The senders should be stopped first, or more may be sent while
+	 * waiting.
+	 * 
+	 * @param timeout The longest to wait.
+	 * @param unit    The unit of the timeout.
+	 * @return True if no payments are in flight.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		drainLock.lock();
+		try {
+			// Only changed while holding the lock. Raised before the count is
+			// checked so an arrival after the check is sure to signal.
+			drainWaiters++;
+			while (inFlight.sum() > 0) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = drained.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			drainWaiters--;
+			drainLock.unlock();
+		}
+	}
+
 	/**
 	 * Creates a new Account object for the given name with a default starting
 	 * balance of 1000. Adds the account to the banks list of acounts
@@ -106,20 +344,233 @@ public class Bank {
 		if (name.length() == 0) {
 			return false;
 		}
+		// Make sure the account number is not already taken
 		do {
-			accnum = generateAccNum();
-			for (Account a : accounts) {
-				if (a.getNumber().equals((accnum))) {
-					// yuck a dupe. Try again
-					continue;
+			accnum = generateAccNum(random);
+		} while (getAccountByAccountNumber(accnum) != null);
+
+		try {
+			accounts.add(name, accnum, startingBalance);
+			journal(AccountIndex.packHigh(accnum, 0, accnum.length()), AccountIndex.packLow(accnum, 0, accnum.length()),
+					Journal.OPEN, startingBalance, 0, 0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Opens many accounts at once, each with a new unique account number. The
+	 * numbers, names and balances are made in parallel on the fork join pool
+	 * the caller is running in, or the common pool, with a generator split from
+	 * the bank's for each task, so the same generator gives the same accounts
+	 * however many threads there are. A shared hash set of numbers checks each
+	 * one is unique as it is made. The accounts are then added to the bank's
+	 * store in order, as it only allows one thread to add at a time.
+	 * 
+	 * Must not be called while other threads are opening accounts in this bank.
+	 * 
+	 * @param count    How many accounts to open, 0 or more.
+	 * @param names    Gives the holder name for each account, from 0 to count - 1.
+	 * @param balances Gives a starting balance from a task's generator.
+	 * @throws IllegalArgumentException If count is negative.
+	 * @throws Exception                If an account could not be stored.
+	 */
+	public void openAccounts(int count, IntFunction<String> names, ToIntFunction<RandomGenerator> balances)
+			throws Exception {
+		if (count < 0) {
+			throw new IllegalArgumentException("Cannot open " + count + " accounts.");
+		}
+		int existing = accounts.size();
+		AccountNumberSet taken = new AccountNumberSet((long) existing + count);
+		for (int i = 0; i < existing; i++) {
+			String number = accounts.get(i).getNumber();
+			taken.add(AccountIndex.packLow(number, 0, number.length()));
+		}
+		int block = Math.min(count, OPEN_BLOCK);
+		String[] holders = new String[block];
+		String[] numbers = new String[block];
+		int[] starts = new int[block];
+		for (int done = 0; done < count; done += block) {
+			int size = Math.min(block, count - done);
+			new NewAccounts(taken, names, balances, holders, numbers, starts, done, 0, size, random.split()).invoke();
+			for (int i = 0; i < size; i++) {
+				accounts.add(holders[i], numbers[i], starts[i]);
+				journal(AccountIndex.packHigh(numbers[i], 0, numbers[i].length()),
+						AccountIndex.packLow(numbers[i], 0, numbers[i].length()), Journal.OPEN, starts[i], 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * Adds an account with a known number and balance, for restoring a bank from
+	 * a snapshot. The account is not journaled.
+	 * 
+	 * @param name    Account holder name
+	 * @param number  Account number
+	 * @param balance Balance
+	 * @throws Exception If the account cannot be stored.
+	 */
+	void restoreAccount(String name, String number, long balance) throws Exception {
+		accounts.add(name, number, 0).restoreBalance(balance);
+	}
+
+	/**
+	 * Records the journal position the balances restored from a snapshot were
+	 * taken at, so only the journal records after it need to be replayed.
+	 * 
+	 * @param position The position, -1 to replay the whole journal.
+	 */
+	void setSnapshotPosition(long position) {
+		snapshotPosition = position;
+	}
+
+	/**
+	 * Returns how many records have been appended to the journal.
+	 * 
+	 * @return The journal position, -1 if there is no journal.
+	 */
+	long getJournalPosition() {
+		return journal == null ? -1 : journal.size();
+	}
+
+	/**
+	 * Starts appending every change to the account balances to a journal.
+	 * 
+	 * If the journal already holds records they are replayed first, setting each
+	 * account to its balance when the journal was last written. If the accounts
+	 * were kept from that run, for example in a ledger file or a snapshot, their
+	 * balances are replayed. If the balances were restored from a snapshot taken
+	 * at a known journal position only the records after it are replayed. If
+	 * the bank has no accounts yet they are opened again from the journal, in
+	 * the order they were first opened, as each account's number is in the
+	 * record that opened it. The journal does not hold the holders' names so
+	 * these are given by the caller. A new journal starts with the current
+	 * balance of every account.
+	 * 
+	 * @param journal The journal.
+	 * @param names   Gives the holder name for each account opened again from
+	 *                the journal, from 0 in the order they are opened.
+	 * @throws IOException If the journal cannot be read or written.
+	 */
+	public void setJournal(Journal journal, IntFunction<String> names) throws IOException {
+		if (accounts.size() == 0) {
+			if (journal.size() > 0) {
+				replay(journal, 0, names);
+			}
+		} else if (journal.size() == 0) {
+			for (int i = 0; i < accounts.size(); i++) {
+				Account a = accounts.get(i);
+				String number = a.getNumber();
+				journal.append(Journal.OPEN, AccountIndex.packHigh(number, 0, number.length()),
+						AccountIndex.packLow(number, 0, number.length()), a.getBalance(), 0, 0);
+			}
+		} else if (snapshotPosition >= 0 && snapshotPosition <= journal.size()) {
+			replay(journal, snapshotPosition, null);
+		} else {
+			replay(journal, 0, null);
+		}
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets each account's balance from the records in a journal, starting at the
+	 * given position. If names is not null an account is opened for each record
+	 * opening an account the bank does not have, otherwise the records for
+	 * unknown accounts are skipped.
+	 */
+	private void replay(Journal journal, long from, IntFunction<String> names) throws IOException {
+		long[] counts = new long[3];
+		journal.replay(from, (type, high, low, amount, session, seq) -> {
+			Account a = accounts.find(high, low);
+			if (a == null && type == Journal.OPEN && names != null) {
+				String number = AccountIndex.unpack(high, low);
+				try {
+					a = accounts.add(names.apply((int) counts[2]), number, 0);
+				} catch (Exception e) {
+					throw new IllegalStateException("Cannot open account " + number + " from the journal.", e);
 				}
+				counts[2]++;
+			}
+			if (a == null) {
+				counts[1]++;
+				return;
+			}
+			if (type == Journal.OPEN) {
+				a.restoreBalance(amount);
+			} else if (type == Journal.CREDIT) {
+				a.restoreBalance(a.getBalance() + amount);
+			} else if (type == Journal.DEBIT) {
+				a.restoreBalance(a.getBalance() - amount);
 			}
-			// not a dupe!
-		} while (false);
+			counts[0]++;
+		});
+		System.out.println("Replayed " + counts[0] + " journal records for bank " + SWIFTName
+				+ (counts[2] > 0 ? ", opening " + counts[2] + " accounts" : "")
+				+ (counts[1] > 0 ? ", skipped " + counts[1] + " for unknown accounts." : "."));
+	}
 
-		Account a = new Account(name, accnum, startingBalance);
-		accounts.add(a);
-		return true;
+	/**
+	 * Appends a change to an account's balance to the journal, if there is one.
+	 * 
+	 * @param a       The account changed.
+	 * @param type    Journal.CREDIT or Journal.DEBIT.
+	 * @param amount  The amount of the change.
+	 * @param session The session of the message making the change.
+	 * @param seq     The sequence number of the message making the change.
+	 * @return The position to give to awaitJournal, 0 if there is no journal.
+	 * @throws IOException If the journal could not be written.
+	 */
+	public long journal(Account a, int type, long amount, int session, int seq) throws IOException {
+		if (journal == null) {
+			return 0;
+		}
+		String number = a.getNumber();
+		return journal(AccountIndex.packHigh(number, 0, number.length()),
+				AccountIndex.packLow(number, 0, number.length()), type, amount, session, seq);
+	}
+
+	/**
+	 * Appends a change to the balance of the account with the given packed number
+	 * to the journal, if there is one.
+	 * 
+	 * @param high    First 2 digits of the account number.
+	 * @param low     Last 18 digits of the account number.
+	 * @param type    Journal.CREDIT or Journal.DEBIT.
+	 * @param amount  The amount of the change.
+	 * @param session The session of the message making the change.
+	 * @param seq     The sequence number of the message making the change.
+	 * @return The position to give to awaitJournal, 0 if there is no journal.
+	 * @throws IOException If the journal could not be written.
+	 */
+	public long journal(int high, long low, int type, long amount, int session, int seq) throws IOException {
+		if (journal == null) {
+			return 0;
+		}
+		return journal.append(type, high, low, amount, session, seq);
+	}
+
+	/**
+	 * Waits until the journal is on disk up to the given position.
+	 * 
+	 * @param position A position returned by journal.
+	 * @throws InterruptedException
+	 */
+	public void awaitJournal(long position) throws InterruptedException {
+		if (journal != null && position > 0) {
+			journal.awaitDurable(position);
+		}
+	}
+
+	/**
+	 * Returns the account at the given position in the bank's list of accounts.
+	 * 
+	 * @param position From 0 to one less than the account count.
+	 * @return The account.
+	 */
+	public Account getAccount(int position) {
+		return accounts.get(position);
 	}
 
 	/**
@@ -128,9 +579,18 @@ public class Bank {
 	 * @return An Account registered with this bank.
 	 */
 	public Account getRandomAccount() {
-		Random random = new Random();
-		int index = random.nextInt(accounts.size());
-		return accounts.get(index);
+		return getRandomAccount(ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Returns a random account from the Banks accounts, picked with the given
+	 * generator.
+	 * 
+	 * @param random The generator to pick the account with.
+	 * @return An Account registered with this bank.
+	 */
+	public Account getRandomAccount(RandomGenerator random) {
+		return accounts.get(random.nextInt(accounts.size()));
 	}
 
 	/**
@@ -140,12 +600,20 @@ public class Bank {
 	 * @return The associated Account or null.
 	 */
 	public Account getAccountByAccountNumber(String number) {
-		for (Account a : accounts) {
-			if (a.getNumber().equals(number)) {
-				return a;
-			}
-		}
-		return null;
+		return getAccountByAccountNumber(AccountIndex.packHigh(number, 0, number.length()),
+				AccountIndex.packLow(number, 0, number.length()));
+	}
+
+	/**
+	 * Returns the Account object with the matching packed account number or null.
+	 * See AccountIndex for how account numbers are packed.
+	 * 
+	 * @param high First 2 digits of the account number.
+	 * @param low  Last 18 digits of the account number.
+	 * @return The associated Account or null.
+	 */
+	public Account getAccountByAccountNumber(int high, long low) {
+		return accounts.find(high, low);
 	}
 
 	/**
@@ -156,7 +624,8 @@ public class Bank {
 	 */
 	public ArrayList<Account> getAccountsByAccountName(String name) {
 		ArrayList<Account> toreturn = new ArrayList<Account>();
-		for (Account a : accounts) {
+		for (int i = 0; i < accounts.size(); i++) {
+			Account a = accounts.get(i);
 			if (a.getName().equals(name)) {
 				toreturn.add(a);
 			}
@@ -172,13 +641,18 @@ public class Bank {
 	 * @return The random account number
 	 */
 	public static String generateAccNum() {
-		StringBuilder sb = new StringBuilder();
-		Random random = new Random();
-		for (int i = 0; i < 20; i++) {
-			int randomNumber = random.nextInt(10);
-			sb.append(randomNumber);
-		}
-		return sb.toString();
+		return generateAccNum(ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Generates a random account number with 20 characters with the given
+	 * generator.
+	 * 
+	 * @param random The generator to pick the number with.
+	 * @return The random account number
+	 */
+	public static String generateAccNum(RandomGenerator random) {
+		return AccountIndex.unpack(random.nextInt(AccountIndex.HIGH_LIMIT), random.nextLong(AccountIndex.LOW_LIMIT));
 	}
 
 	/**
@@ -187,9 +661,19 @@ public class Bank {
 	 * @return The Branch code.
 	 */
 	public static String generateBranchCode() {
+		return generateBranchCode(ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Generates a random branch code of 3 characters made from A-G characters
+	 * with the given generator.
+	 * 
+	 * @param random The generator to pick the characters with.
+	 * @return The Branch code.
+	 */
+	public static String generateBranchCode(RandomGenerator random) {
 		char validChar[] = { 'A', 'B', 'C', 'D', 'E', 'F', 'G' };
-		StringBuilder sb = new StringBuilder();
-		Random random = new Random();
+		StringBuilder sb = new StringBuilder(3);
 		for (int i = 0; i < 3; i++) {
 			char randomNumber = validChar[random.nextInt(validChar.length)];
 			sb.append(randomNumber);
@@ -197,20 +681,107 @@ public class Bank {
 		return sb.toString();
 	}
 
+	/**
+	 * Releases the bank's account storage and journal, saving any changes to
+	 * them.
+	 */
+	public void close() {
+		if (journal != null) {
+			journal.close();
+			journal.printStats();
+		}
+		accounts.close();
+	}
+
 	/**
 	 * Prints a summary of the bank and accounts registered with it.
 	 */
 	public void printMe() {
+		printMe(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Prints a summary of the bank and up to the given number of its accounts.
+	 * 
+	 * @param maxAccounts The most accounts to print.
+	 */
+	public void printMe(int maxAccounts) {
 		System.out.println("-- Start Bank --");
 		System.out.println("BANK: " + name);
 		System.out.println("SWIFT: " + SWIFTName);
 		System.out.println("QNAME: " + qName);
 		System.out.println("CURRENCY: " + defaultCur.getSwiftCode());
-		System.out.println("Accounts: " + accounts.size());
-		for (int i = 0; i < accounts.size(); i++) {
+		int size = accounts.size();
+		System.out.println("Accounts: " + size);
+		for (int i = 0; i < size && i < maxAccounts; i++) {
 			System.out.print("  Account " + i + ": ");
 			accounts.get(i).printMe();
 		}
+		if (size > maxAccounts) {
+			System.out.println("  ... and " + (size - maxAccounts) + " more accounts, total balance["
+					+ getTotalBalance() + ",00]");
+		}
 		System.out.println("-- End Bank --");
 	}
+
+	/**
+	 * Makes the numbers, names and balances of a range of new accounts for
+	 * openAccounts, splitting the range between fork join tasks.
+	 */
+	private static final class NewAccounts extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final AccountNumberSet taken;
+		private final IntFunction<String> names;
+		private final ToIntFunction<RandomGenerator> balances;
+		private final String[] holders;
+		private final String[] numbers;
+		private final int[] starts;
+		// Index of the block's first account in the whole openAccounts call
+		private final int first;
+		private final int from;
+		private final int to;
+		// Only this task uses it, tasks split off are given their own
+		private final SplittableRandom random;
+
+		private NewAccounts(AccountNumberSet taken, IntFunction<String> names, ToIntFunction<RandomGenerator> balances,
+				String[] holders, String[] numbers, int[] starts, int first, int from, int to,
+				SplittableRandom random) {
+			this.taken = taken;
+			this.names = names;
+			this.balances = balances;
+			this.holders = holders;
+			this.numbers = numbers;
+			this.starts = starts;
+			this.first = first;
+			this.from = from;
+			this.to = to;
+			this.random = random;
+		}
+
+		private NewAccounts(NewAccounts parent, int from, int to, SplittableRandom random) {
+			this(parent.taken, parent.names, parent.balances, parent.holders, parent.numbers, parent.starts,
+					parent.first, from, to, random);
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > OPEN_SPLIT) {
+				int middle = (from + to) >>> 1;
+				// Split in the same order every time so the accounts do not depend on
+				// which thread runs which half
+				SplittableRandom left = random.split();
+				invokeAll(new NewAccounts(this, from, middle, left), new NewAccounts(this, middle, to, random));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				long low;
+				do {
+					low = random.nextLong(AccountIndex.LOW_LIMIT);
+				} while (!taken.add(low));
+				numbers[i] = AccountIndex.unpack(random.nextInt(AccountIndex.HIGH_LIMIT), low);
+				holders[i] = names.apply(first + i);
+				starts[i] = Math.max(balances.applyAsInt(random), 0);
+			}
+		}
+	}
 }
@@ -0,0 +1,255 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The banks to create and the accounts to open in them, read from a properties
+ * file. "banks" lists the id of each bank entry and each entry is configured
+ * with "bank.<id>.<key>":
+ * - name, the bank's name.
+ * - swift, the bank's 8 character SWIFT name.
+ * - queue, the queue the bank receives from, defaults to "<SWIFT name>.Q".
+ * - currency, EUR, GBP or USD, defaults to GBP.
+ * - holders, a comma separated list of named account holders, each opened
+ * with a balance of 1000.
+ * - accounts, how many more accounts to generate, defaults to 0.
+ * - balance, the BalanceDistribution of the generated accounts' balances,
+ * defaults to "fixed:1000".
+ * - holder, the name the generated account holders are given followed by a
+ * number, defaults to "Customer".
+ * - copies, how many banks to make from the entry, defaults to 1. Each copy
+ * has its number added to the end of its name and queue, and the SWIFT name
+ * is used as a prefix padded with the number to 8 characters.
+ * 
+ * For example a bank of 10,000 accounts with balances spread evenly between 0
+ * and 2000:
+ * 
+ * <pre>
+ * banks=big
+ * bank.big.name=BigBank
+ * bank.big.swift=BANKBIGG
+ * bank.big.accounts=10000
+ * bank.big.balance=uniform:0:2000
+ * </pre>
+ */
+public class BankConfig {
+
+	/**
+	 * Creates a bank and opens an account for each of the given holders.
+	 */
+	public interface BankFactory {
+		/**
+		 * @param name      Name of bank
+		 * @param swiftname the SWIFT name of the bank.
+		 * @param cur       The currency of the bank.
+		 * @param qname     The queue the bank will monitor.
+		 * @param holders   The names of the account holders.
+		 * @return The bank.
+		 * @throws Exception
+		 */
+		Bank create(String name, String swiftname, Currency cur, String qname, String... holders) throws Exception;
+	}
+
+	/**
+	 * One bank to create.
+	 */
+	private static final class BankSpec {
+		private String name;
+		private String swiftname;
+		private String qname;
+		private Currency cur;
+		private String[] holders;
+		private int accounts;
+		private BalanceDistribution balances;
+		private String holder;
+	}
+
+	private final ArrayList<BankSpec> specs = new ArrayList<BankSpec>();
+
+	private BankConfig() {
+	}
+
+	/**
+	 * Reads the banks from a properties file.
+	 * 
+	 * @param file The file.
+	 * @return The configuration.
+	 * @throws Exception If the file cannot be read or a bank is not configured
+	 *                   correctly.
+	 */
+	public static BankConfig load(Path file) throws Exception {
+		Properties props = new Properties();
+		try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(in);
+		}
+		BankConfig config = new BankConfig();
+		HashSet<String> swiftnames = new HashSet<String>();
+		for (String id : list(props.getProperty("banks", ""))) {
+			String prefix = "bank." + id + ".";
+			String name = props.getProperty(prefix + "name", id);
+			String swift = props.getProperty(prefix + "swift");
+			if (swift == null) {
+				throw new Exception("Bank " + id + " has no SWIFT name.");
+			}
+			String queue = props.getProperty(prefix + "queue");
+			Currency cur = Currency.parse(props.getProperty(prefix + "currency", "GBP"));
+			String[] holders = list(props.getProperty(prefix + "holders", ""));
+			int accounts = number(props, prefix + "accounts", 0);
+			BalanceDistribution balances = BalanceDistribution
+					.parse(props.getProperty(prefix + "balance", "fixed:1000"));
+			String holder = props.getProperty(prefix + "holder", "Customer");
+			int copies = number(props, prefix + "copies", 1);
+			if (copies > 1 && swift.length() + String.valueOf(copies).length() > 8) {
+				throw new Exception("SWIFT name " + swift + " of bank " + id + " is too long to number " + copies
+						+ " copies.");
+			}
+
+			for (int n = 1; n <= copies; n++) {
+				BankSpec spec = new BankSpec();
+				if (copies == 1) {
+					spec.name = name;
+					spec.swiftname = swift;
+					spec.qname = queue;
+				} else {
+					spec.name = name + " " + n;
+					spec.swiftname = swift + String.format("%0" + (8 - swift.length()) + "d", n);
+					spec.qname = queue == null ? null : queue + n;
+				}
+				if (spec.qname == null) {
+					spec.qname = spec.swiftname + ".Q";
+				}
+				if (!swiftnames.add(spec.swiftname)) {
+					throw new Exception("More than one bank has the SWIFT name " + spec.swiftname);
+				}
+				spec.cur = cur;
+				spec.holders = holders;
+				spec.accounts = accounts;
+				spec.balances = balances;
+				spec.holder = holder;
+				config.specs.add(spec);
+			}
+		}
+		if (config.specs.isEmpty()) {
+			throw new Exception("No banks configured in " + file);
+		}
+		return config;
+	}
+
+	private static String[] list(String value) {
+		ArrayList<String> items = new ArrayList<String>();
+		for (String item : value.split(",")) {
+			if (!item.trim().isEmpty()) {
+				items.add(item.trim());
+			}
+		}
+		return items.toArray(new String[0]);
+	}
+
+	private static int number(Properties props, String key, int defaultValue) throws Exception {
+		String value = props.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int n = Integer.parseInt(value.trim().replace("_", ""));
+			if (n < 0) {
+				throw new NumberFormatException();
+			}
+			return n;
+		} catch (NumberFormatException e) {
+			throw new Exception(key + " must be a whole number of 0 or more, not " + value);
+		}
+	}
+
+	/**
+	 * Returns the number of banks configured.
+	 * 
+	 * @return Number of banks.
+	 */
+	public int getBankCount() {
+		return specs.size();
+	}
+
+	/**
+	 * Creates every bank and opens its accounts, building the banks in parallel
+	 * on a fork join pool. The generated accounts of each bank are also made in
+	 * parallel on the same pool, see Bank.openAccounts. Each bank is filled up
+	 * to its named holders plus its generated accounts, so a bank whose
+	 * accounts were kept from an earlier run is not given more.
+	 * 
+	 * @param parallelism How many banks to build at once.
+	 * @param factory     Creates each bank and opens its named holders' accounts.
+	 * @return The banks in the order they were configured.
+	 * @throws Exception If a bank could not be created.
+	 */
+	public ArrayList<Bank> build(int parallelism, BankFactory factory) throws Exception {
+		long start = System.nanoTime();
+		ArrayList<Callable<Bank>> tasks = new ArrayList<Callable<Bank>>();
+		for (BankSpec spec : specs) {
+			tasks.add(() -> build(spec, factory));
+		}
+		ArrayList<Bank> banks = new ArrayList<Bank>();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(parallelism, 1));
+		try {
+			List<Future<Bank>> built = pool.invokeAll(tasks);
+			for (Future<Bank> f : built) {
+				banks.add(f.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			pool.shutdown();
+		}
+		long accounts = 0;
+		for (Bank b : banks) {
+			accounts += b.getAccountCount();
+		}
+		System.out.println("Built " + banks.size() + " banks with " + accounts + " accounts on "
+				+ pool.getParallelism() + " threads in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+				+ "ms");
+		return banks;
+	}
+
+	private static Bank build(BankSpec spec, BankFactory factory) throws Exception {
+		Bank b = factory.create(spec.name, spec.swiftname, spec.cur, spec.qname, spec.holders);
+		int missing = spec.holders.length + spec.accounts - b.getAccountCount();
+		if (missing > 0) {
+			int next = b.getAccountCount() - spec.holders.length + 1;
+			b.openAccounts(missing, i -> spec.holder + " " + (next + i), spec.balances::next);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * The attributes of a Bank shown through JMX.
+ */
+public interface BankMBean {
+	public String getName();
+
+	public String getSWIFTName();
+
+	public String getqName();
+
+	/**
+	 * Returns the number of accounts registered with this bank.
+	 * 
+	 * @return Number of accounts.
+	 */
+	public int getAccountCount();
+
+	/**
+	 * Returns the sum of the balances of every account in this bank.
+	 * 
+	 * @return The total balance.
+	 */
+	public long getTotalBalance();
+
+	/**
+	 * Returns the number of payments sent to this bank that have not yet been
+	 * taken from its queue and deposited.
+	 * 
+	 * @return Payments in flight.
+	 */
+	public long getInFlight();
+
+	/**
+	 * Returns whether this bank has too many payments in flight for senders to
+	 * send it more, see Bank.setFlowControl.
+	 * 
+	 * @return True if congested.
+	 */
+	public boolean isCongested();
+
+	/**
+	 * Returns the number of times the payments in flight to this bank have
+	 * reached its high-water mark.
+	 * 
+	 * @return Times congested.
+	 */
+	public long getCongestionEvents();
+}
@@ -0,0 +1,129 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a ring
+ * buffer. Each slot carries a sequence number that tells producers and
+ * consumers whether the slot is free to write or ready to read, so neither side
+ * ever takes a lock.
+ *
+ * @param <E> The type of element held in the queue.
+ */
+public class BoundedRingQueue<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Creates a queue that can hold at least the given number of elements. The
+	 * capacity is rounded up to a power of two.
+	 * 
+	 * @param capacity The minimum number of elements the queue can hold.
+	 */
+	public BoundedRingQueue(int capacity) {
+		if (capacity < 2) {
+			capacity = 2;
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		mask = size - 1;
+		buffer = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element to the tail of the queue.
+	 * 
+	 * @param e The element to add. Must not be null.
+	 * @return True if added, false if the queue is full.
+	 */
+	public boolean offer(E e) {
+		while (true) {
+			long pos = tail.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer.lazySet(index, e);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				// The slot still holds an element a consumer has not taken
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the element at the head of the queue.
+	 * 
+	 * @return The element or null if the queue is empty.
+	 */
+	public E poll() {
+		while (true) {
+			long pos = head.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					E e = buffer.get(index);
+					buffer.lazySet(index, null);
+					sequences.set(index, pos + mask + 1);
+					return e;
+				}
+			} else if (diff < 0) {
+				// Nothing has been published to this slot yet
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Returns an estimate of the number of elements in the queue.
+	 * 
+	 * @return The number of elements.
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, mask + 1);
+	}
+
+	/**
+	 * Returns the maximum number of elements the queue can hold.
+	 * 
+	 * @return The capacity.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
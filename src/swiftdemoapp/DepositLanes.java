@@ -0,0 +1,309 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads the deposits for one bank over several lanes, each with its own
+ * queue and thread. Every message for an account goes to the same lane, chosen
+ * by hashing the destination account number, so deposits into one account are
+ * made in the order they were received while deposits into different accounts
+ * run in parallel.
+ * 
+ * Each message is parsed once, by the thread filling the lanes, and the lane
+ * is given a copy of the view holding the positions of its fields so it does
+ * not have to scan the message again.
+ */
+public class DepositLanes {
+
+	// How long a lane sleeps when it has nothing to do, it is normally woken
+	// sooner by a new message.
+	private static final long PARK_IDLE = TimeUnit.MILLISECONDS.toNanos(100);
+	// How long to wait between attempts to add to a full lane.
+	private static final long PARK_FULL = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Bank bank;
+	private final Lane[] lanes;
+	private volatile boolean stop = false;
+	// Where the time from send to deposit is recorded, null to not record it
+	private LatencyTracker latency = null;
+	// Where each payment's summary is recorded, null to print it straight away
+	private AuditLog audit = null;
+	// The receiver's counters, also updated by the lanes
+	private HandlerMetrics metrics = new HandlerMetrics();
+
+	/**
+	 * Creates the lanes for a bank. They do nothing until started.
+	 * 
+	 * @param bank      The bank to deposit into.
+	 * @param laneCount Number of lanes.
+	 * @param laneDepth Most messages each lane can hold waiting to be deposited.
+	 */
+	public DepositLanes(Bank bank, int laneCount, int laneDepth) {
+		if (laneCount < 1) {
+			laneCount = 1;
+		}
+		this.bank = bank;
+		lanes = new Lane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new Lane(i, laneDepth);
+		}
+	}
+
+	/**
+	 * Sets where the time each payment took from being sent to being deposited
+	 * is recorded. Must be called before the lanes are started.
+	 * 
+	 * @param latency The tracker or null to not record latency.
+	 */
+	public void setLatencyTracker(LatencyTracker latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the counters the lanes add their deposits and failures to. Must be
+	 * called before the lanes are started.
+	 * 
+	 * @param metrics The counters.
+	 */
+	public void setMetrics(HandlerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets where the summary of each payment is recorded, null to print it.
+	 * Must be called before the lanes are started.
+	 * 
+	 * @param audit The audit log or null.
+	 */
+	public void setAuditLog(AuditLog audit) {
+		this.audit = audit;
+	}
+
+	/**
+	 * Starts a thread for each lane.
+	 */
+	public void start() {
+		for (Lane lane : lanes) {
+			lane.thread.start();
+		}
+	}
+
+	/**
+	 * Returns the lane that deposits for the given account.
+	 * 
+	 * @param high The packed first digits of the account number.
+	 * @param low  The packed remaining digits of the account number.
+	 * @return The lane number.
+	 */
+	public int laneFor(int high, long low) {
+		long h = (low ^ ((long) high << 58)) * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 32) % lanes.length);
+	}
+
+	/**
+	 * Hands a message to the lane for its destination account. If that lane is
+	 * full this waits until there is room, so a slow lane holds back the queue
+	 * rather than messages being lost.
+	 * 
+	 * @param v View of the message that is not reused, see SWIFTview.copy.
+	 * @throws Exception If the lanes are stopped before there is room.
+	 */
+	public void dispatch(SWIFTview v) throws Exception {
+		Lane lane = lanes[laneFor(v.getDestAccountHigh(), v.getDestAccountLow())];
+		if (!lane.queue.offer(v)) {
+			lane.full.incrementAndGet();
+			do {
+				if (stop) {
+					// The message will not be deposited, so is no longer in flight
+					lane.failures.incrementAndGet();
+					bank.paymentArrived();
+					throw new Exception("Deposit lanes stopped with message waiting for lane " + lane.number);
+				}
+				LockSupport.unpark(lane.thread);
+				LockSupport.parkNanos(PARK_FULL);
+			} while (!lane.queue.offer(v));
+		}
+		int depth = lane.queue.size();
+		if (depth > lane.maxDepth) {
+			lane.maxDepth = depth;
+		}
+		LockSupport.unpark(lane.thread);
+	}
+
+	/**
+	 * Stops the lanes once every message already given to them is deposited and
+	 * waits for their threads to end.
+	 */
+	public void stop() {
+		stop = true;
+		for (Lane lane : lanes) {
+			LockSupport.unpark(lane.thread);
+		}
+		for (Lane lane : lanes) {
+			try {
+				lane.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of lanes.
+	 * 
+	 * @return The number of lanes.
+	 */
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * Returns the number of messages waiting in a lane.
+	 * 
+	 * @param lane The lane number.
+	 * @return Messages waiting to be deposited.
+	 */
+	public int getLaneDepth(int lane) {
+		return lanes[lane].queue.size();
+	}
+
+	/**
+	 * Returns the most messages that have been waiting in a lane at once.
+	 * 
+	 * @param lane The lane number.
+	 * @return The highest depth seen.
+	 */
+	public int getMaxLaneDepth(int lane) {
+		return lanes[lane].maxDepth;
+	}
+
+	/**
+	 * Returns the number of deposits a lane has made.
+	 * 
+	 * @param lane The lane number.
+	 * @return Deposits made.
+	 */
+	public long getDeposits(int lane) {
+		return lanes[lane].deposits.get();
+	}
+
+	/**
+	 * Prints the deposits, depth and capacity of each lane, how often it was full
+	 * and the messages it failed to deposit.
+	 */
+	public void printStats() {
+		// Built up first so the lines of different banks are not mixed together
+		StringBuilder out = new StringBuilder("Deposit lanes for bank " + bank.getSWIFTName() + ":");
+		for (Lane lane : lanes) {
+			out.append(System.lineSeparator()).append("  Lane ").append(lane.number).append(": deposits[")
+					.append(lane.deposits.get()).append("] depth[").append(lane.queue.size()).append('/')
+					.append(lane.queue.capacity()).append("] max depth[").append(lane.maxDepth).append("] full[")
+					.append(lane.full.get()).append("] failures[").append(lane.failures.get()).append(']');
+		}
+		System.out.println(out);
+	}
+
+	/**
+	 * One lane, its queue and the thread that deposits the messages in it.
+	 */
+	private final class Lane implements Runnable {
+		private final int number;
+		private final BoundedRingQueue<SWIFTview> queue;
+		private final Thread thread;
+		private final AtomicLong deposits = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong full = new AtomicLong();
+		// Only written by the thread dispatching messages
+		private volatile int maxDepth = 0;
+
+		private Lane(int number, int depth) {
+			this.number = number;
+			queue = new BoundedRingQueue<SWIFTview>(depth);
+			thread = new Thread(this, "Deposit lane " + bank.getSWIFTName() + "-" + number);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				SWIFTview v = queue.poll();
+				if (v == null) {
+					if (stop) {
+						// Only stop once the lane is empty
+						if (queue.size() == 0) {
+							return;
+						}
+						continue;
+					}
+					LockSupport.parkNanos(this, PARK_IDLE);
+					continue;
+				}
+				try {
+					deposit(v);
+				} catch (Exception e) {
+					failures.incrementAndGet();
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void summarize(SWIFTview v) throws Exception {
+			if (audit != null) {
+				audit.record(v);
+			} else {
+				v.summarize();
+			}
+		}
+
+		/**
+		 * Deposits the money from a message the same way as MoneyReceiver does. The
+		 * message is taken from the lane however this ends, so it is no longer in
+		 * flight even if it fails.
+		 */
+		private void deposit(SWIFTview v) throws Exception {
+			try {
+				summarize(v);
+
+				Account a = bank.getAccountByAccountNumber(v.getDestAccountHigh(), v.getDestAccountLow());
+				if (a == null) {
+					failures.incrementAndGet();
+					metrics.unknownAccountFailures.increment();
+					System.err.println("Failed to find account " + v.getDestAccount() + " in bank " + bank.getName());
+					return;
+				}
+				int amount = v.getAmmount();
+				a.addMoney(amount);
+				deposits.incrementAndGet();
+				metrics.deposits.increment();
+				bank.journal(v.getDestAccountHigh(), v.getDestAccountLow(), Journal.CREDIT, amount,
+						v.getSessionNumber(), v.getSeqNumber());
+				if (latency != null) {
+					latency.record(v, bank.getSWIFTName());
+				}
+			} finally {
+				bank.paymentArrived();
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the MoneySenders and MoneyReceivers and stops them in order so the
+ * payments already sent are deposited before the receivers stop:
+ * 1. Signal every sender to stop and wait for them to end.
+ * 2. Wait for each receiver's bank to have no payments in flight.
+ * 3. Signal every receiver to stop and wait for them to end.
+ * Every wait has a time limit and blocks rather than spins. The time each
+ * handler took to drain and stop and the payments still in flight to each bank
+ * are printed at the end.
+ */
+public class HandlerLifecycle {
+	private final ArrayList<Handler> senders = new ArrayList<Handler>();
+	private final ArrayList<Handler> receivers = new ArrayList<Handler>();
+	private ExecutorService executor = null;
+
+	/**
+	 * Adds a sender, to be started with start.
+	 * 
+	 * @param sender The sender.
+	 * @param bank   The bank it sends from.
+	 */
+	public void addSender(MoneyHandlers sender, Bank bank) {
+		senders.add(new Handler("MoneySender", sender, bank));
+	}
+
+	/**
+	 * Adds a receiver, to be started with start.
+	 * 
+	 * @param receiver The receiver.
+	 * @param bank     The bank it deposits into.
+	 */
+	public void addReceiver(MoneyHandlers receiver, Bank bank) {
+		receivers.add(new Handler("MoneyReceiver", receiver, bank));
+	}
+
+	/**
+	 * Runs every receiver and then every sender on the given executor, which is
+	 * shut down when they are stopped.
+	 * 
+	 * @param executor Runs each handler on its own thread.
+	 */
+	public void start(ExecutorService executor) {
+		this.executor = executor;
+		for (Handler h : receivers) {
+			executor.execute(h);
+		}
+		for (Handler h : senders) {
+			executor.execute(h);
+		}
+	}
+
+	/**
+	 * Stops the senders, waits for the payments they sent to be deposited and then
+	 * stops the receivers.
+	 * 
+	 * @param drainMillis The longest to wait for the payments in flight to be
+	 *                    deposited.
+	 * @param stopMillis  The longest to wait for each group of handlers to end
+	 *                    once signalled.
+	 * @return True if every handler ended in time.
+	 * @throws InterruptedException
+	 */
+	public boolean stop(long drainMillis, long stopMillis) throws InterruptedException {
+		boolean ended = stopAll(senders, stopMillis);
+
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+		for (Handler h : receivers) {
+			// A receiver that has already ended will not drain its bank
+			if (h.done.getCount() > 0) {
+				h.drained = h.bank.awaitDrained(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+			} else {
+				h.drained = h.bank.getInFlight() <= 0;
+			}
+			h.drainNanos = System.nanoTime() - start;
+		}
+
+		ended &= stopAll(receivers, stopMillis);
+		for (Handler h : receivers) {
+			h.outstanding = h.bank.getInFlight();
+		}
+		if (executor != null) {
+			executor.shutdown();
+			ended &= executor.awaitTermination(stopMillis, TimeUnit.MILLISECONDS);
+		}
+		return ended;
+	}
+
+	/**
+	 * Signals each handler to stop and waits, until the deadline, for each to end.
+	 * 
+	 * @return True if they all ended.
+	 */
+	private static boolean stopAll(ArrayList<Handler> handlers, long stopMillis) throws InterruptedException {
+		long start = System.nanoTime();
+		for (Handler h : handlers) {
+			h.handler.signalStop();
+		}
+		boolean ended = true;
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(stopMillis);
+		for (Handler h : handlers) {
+			if (h.done.await(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+				h.stopNanos = Math.max(h.endTime - start, 0);
+			} else {
+				ended = false;
+			}
+		}
+		return ended;
+	}
+
+	/**
+	 * Prints how long each sender took to stop, and for each receiver how long its
+	 * bank took to drain, how long it took to stop and the payments to its bank
+	 * still in flight.
+	 */
+	public void printStats() {
+		for (Handler h : senders) {
+			System.out.println(h.name + " " + h.bank.getSWIFTName() + ": stop[" + millis(h.stopNanos) + "]");
+		}
+		for (Handler h : receivers) {
+			System.out.println(h.name + " " + h.bank.getSWIFTName() + ": drain[" + millis(h.drainNanos)
+					+ (h.drained ? "" : " timed out") + "] stop[" + millis(h.stopNanos) + "] outstanding["
+					+ h.outstanding + "]");
+		}
+	}
+
+	private static String millis(long nanos) {
+		return nanos < 0 ? "did not end" : String.format("%.1fms", nanos / 1e6);
+	}
+
+	/**
+	 * A handler being run, counting down when it ends.
+	 */
+	private static final class Handler implements Runnable {
+		private final String name;
+		private final MoneyHandlers handler;
+		private final Bank bank;
+		private final CountDownLatch done = new CountDownLatch(1);
+		// Written before counting down, so seen by any thread the latch releases
+		private long endTime;
+		// Set and read only by the thread stopping the handlers, -1 if not done
+		private long drainNanos = -1;
+		private long stopNanos = -1;
+		private boolean drained = false;
+		private long outstanding = 0;
+
+		private Handler(String name, MoneyHandlers handler, Bank bank) {
+			this.name = name;
+			this.handler = handler;
+			this.bank = bank;
+		}
+
+		@Override
+		public void run() {
+			try {
+				handler.run();
+			} finally {
+				endTime = System.nanoTime();
+				done.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for a MoneySender or MoneyReceiver. The counters are striped so
+ * many threads, such as deposit lanes, can update them without contending.
+ */
+public class HandlerMetrics implements HandlerMetricsMBean {
+
+	final LongAdder messagesSent = new LongAdder();
+	final LongAdder bytesSent = new LongAdder();
+	final LongAdder messagesReceived = new LongAdder();
+	final LongAdder bytesReceived = new LongAdder();
+	final LongAdder deposits = new LongAdder();
+	final LongAdder sendFailures = new LongAdder();
+	final LongAdder parseFailures = new LongAdder();
+	final LongAdder unknownAccountFailures = new LongAdder();
+	final LongAdder failures = new LongAdder();
+	final LongAdder throttles = new LongAdder();
+	final LongAdder throttledNanos = new LongAdder();
+	final LongAdder reroutes = new LongAdder();
+
+	@Override
+	public long getMessagesSent() {
+		return messagesSent.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getMessagesReceived() {
+		return messagesReceived.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getDeposits() {
+		return deposits.sum();
+	}
+
+	@Override
+	public long getSendFailures() {
+		return sendFailures.sum();
+	}
+
+	@Override
+	public long getParseFailures() {
+		return parseFailures.sum();
+	}
+
+	@Override
+	public long getUnknownAccountFailures() {
+		return unknownAccountFailures.sum();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	@Override
+	public long getThrottles() {
+		return throttles.sum();
+	}
+
+	@Override
+	public long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+	}
+
+	@Override
+	public long getReroutes() {
+		return reroutes.sum();
+	}
+
+	/**
+	 * Registers an MBean with the platform MBean server under the name
+	 * swiftdemoapp:type=&lt;type&gt;,bank=&lt;bank&gt;. Failures are printed and
+	 * otherwise ignored as the demo runs the same without JMX.
+	 * 
+	 * @param mbean The MBean.
+	 * @param type  The kind of object, for example Bank or MoneySender.
+	 * @param bank  The SWIFT name of the bank the object is for.
+	 */
+	public static void register(Object mbean, String type, String bank) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("swiftdemoapp:type=" + type + ",bank=" + bank);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+		} catch (Exception e) {
+			System.err.println("Failed to register " + type + " MBean for bank " + bank);
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * The counters of a MoneySender or MoneyReceiver shown through JMX. Each
+ * counts from when the handler was created.
+ */
+public interface HandlerMetricsMBean {
+	public long getMessagesSent();
+
+	public long getBytesSent();
+
+	public long getMessagesReceived();
+
+	public long getBytesReceived();
+
+	public long getDeposits();
+
+	/**
+	 * Returns the number of messages that could not be sent.
+	 * 
+	 * @return Send failures.
+	 */
+	public long getSendFailures();
+
+	/**
+	 * Returns the number of messages received that were not valid MT103
+	 * messages.
+	 * 
+	 * @return Parse failures.
+	 */
+	public long getParseFailures();
+
+	/**
+	 * Returns the number of messages received for an account the bank does not
+	 * have.
+	 * 
+	 * @return Unknown account failures.
+	 */
+	public long getUnknownAccountFailures();
+
+	/**
+	 * Returns the number of errors counted towards the handler giving up.
+	 * 
+	 * @return Failures.
+	 */
+	public long getFailures();
+
+	/**
+	 * Returns the number of times a sender waited for a congested bank to catch
+	 * up before sending to it.
+	 * 
+	 * @return Throttle events.
+	 */
+	public long getThrottles();
+
+	/**
+	 * Returns the total time a sender has spent waiting for congested banks.
+	 * 
+	 * @return Milliseconds throttled.
+	 */
+	public long getThrottledMillis();
+
+	/**
+	 * Returns the number of payments a sender sent to another bank because the
+	 * one first picked was congested.
+	 * 
+	 * @return Reroutes.
+	 */
+	public long getReroutes();
+}
@@ -0,0 +1,70 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.ArrayList;
+
+/**
+ * Holds accounts as Account objects on the Java heap, indexed by account
+ * number. This is the default storage for a Bank.
+ */
+public class HeapAccountStore implements AccountStore {
+	private ArrayList<Account> accounts = new ArrayList<Account>();
+	// Finds an account's position in accounts from its number
+	private AccountIndex index = new AccountIndex(16);
+
+	@Override
+	public Account add(String name, String number, int startingBalance) throws Exception {
+		int high = AccountIndex.packHigh(number, 0, number.length());
+		long low = AccountIndex.packLow(number, 0, number.length());
+		if (high < 0 || low < 0) {
+			throw new Exception("Account number must be " + AccountIndex.ACCOUNT_DIGITS + " digits.");
+		}
+		Account a = new Account(name, number, startingBalance);
+		index.put(high, low, accounts.size());
+		accounts.add(a);
+		return a;
+	}
+
+	@Override
+	public int size() {
+		return accounts.size();
+	}
+
+	@Override
+	public Account get(int position) {
+		return accounts.get(position);
+	}
+
+	@Override
+	public Account find(int high, long low) {
+		int position = index.get(high, low);
+		if (position < 0) {
+			return null;
+		}
+		return accounts.get(position);
+	}
+
+	/**
+	 * Nothing to release, the accounts are only in memory.
+	 */
+	@Override
+	public void close() {
+	}
+}
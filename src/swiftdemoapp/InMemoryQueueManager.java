@@ -0,0 +1,102 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand in for an IBM MQ queue manager. It holds a bounded
+ * lock-free queue for each queue name, created the first time the name is used.
+ * Messages on the queues are either a String or a byte[]. A single
+ * InMemoryQueueManager is shared by all of the InMemoryTransport objects that
+ * should be able to see each others messages.
+ */
+public class InMemoryQueueManager {
+
+	private final ConcurrentHashMap<String, BoundedRingQueue<Object>> queues = new ConcurrentHashMap<String, BoundedRingQueue<Object>>();
+	// Threads that park while waiting for a message on a queue
+	private final ConcurrentHashMap<String, Thread> waiters = new ConcurrentHashMap<String, Thread>();
+	private final int queueCapacity;
+
+	/**
+	 * Creates a queue manager whose queues can each hold the given number of
+	 * messages.
+	 * 
+	 * @param queueCapacity Maximum depth of each queue.
+	 */
+	public InMemoryQueueManager(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Returns the queue with the given name, creating it if needed.
+	 * 
+	 * @param name The queue name.
+	 * @return The queue.
+	 */
+	public BoundedRingQueue<Object> getQueue(String name) {
+		BoundedRingQueue<Object> q = queues.get(name);
+		if (q == null) {
+			q = queues.computeIfAbsent(name, n -> new BoundedRingQueue<Object>(queueCapacity));
+		}
+		return q;
+	}
+
+	/**
+	 * Registers a thread to be woken whenever a message is put to the given queue.
+	 * Passing null removes the registration.
+	 * 
+	 * @param name   The queue name.
+	 * @param waiter The thread to wake or null.
+	 */
+	public void setWaiter(String name, Thread waiter) {
+		if (waiter == null) {
+			waiters.remove(name);
+		} else {
+			waiters.put(name, waiter);
+		}
+	}
+
+	/**
+	 * Wakes the thread waiting on the given queue, if there is one.
+	 * 
+	 * @param name The queue name.
+	 */
+	public void wakeWaiter(String name) {
+		Thread waiter = waiters.get(name);
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * Returns the current depth of the given queue.
+	 * 
+	 * @param name The queue name.
+	 * @return Number of messages on the queue.
+	 */
+	public int getDepth(String name) {
+		BoundedRingQueue<Object> q = queues.get(name);
+		if (q == null) {
+			return 0;
+		}
+		return q.size();
+	}
+}
@@ -0,0 +1,384 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A MessageTransport that passes messages through an InMemoryQueueManager
+ * instead of IBM MQ. This allows the whole bank simulation to be ran without a
+ * queue manager, for example for capacity tests.
+ */
+public class InMemoryTransport implements MessageTransport {
+
+	// Same wait as MQI uses when receiving
+	private static final long RECEIVE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+	// How long a put will wait for space on a full queue before failing
+	private static final long PUT_WAIT = TimeUnit.SECONDS.toNanos(1);
+	private static final long PARK_TIME = TimeUnit.MICROSECONDS.toNanos(50);
+	// Longest a listener thread will sleep on an empty queue
+	private static final long PARK_IDLE = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final InMemoryQueueManager qmgr;
+	private volatile boolean connected = false;
+
+	private final Set<String> sendQueues = ConcurrentHashMap.newKeySet();
+	private final Set<String> receiveQueues = ConcurrentHashMap.newKeySet();
+	// Messages received by receiveBatch that have not been committed yet
+	private final ArrayList<String> uncommittedQueues = new ArrayList<String>();
+	private final ArrayList<Object> uncommittedMessages = new ArrayList<Object>();
+	// Messages given back by rollback, received again in the order they were
+	// first received before anything else on their queue. They are held here
+	// rather than put back on the queue so they keep their place and are never
+	// lost to a full queue.
+	private final HashMap<String, ArrayDeque<Object>> backedOut = new HashMap<String, ArrayDeque<Object>>();
+	private final ConcurrentHashMap<String, Thread> dispatchers = new ConcurrentHashMap<String, Thread>();
+	// Passed before each put, as puts are seen straight away
+	private SendBarrier sendBarrier = null;
+
+	/**
+	 * Creates a transport using the given queue manager.
+	 * 
+	 * @param qmgr The in memory queue manager to use.
+	 */
+	public InMemoryTransport(InMemoryQueueManager qmgr) {
+		this.qmgr = qmgr;
+	}
+
+	@Override
+	public void createConnection() throws Exception {
+		connected = true;
+	}
+
+	@Override
+	public void sendMessage(String destinationQ, String message) throws Exception {
+		if (!connected) {
+			throw new Exception("Transport not connected.");
+		}
+		sendQueues.add(destinationQ);
+		if (sendBarrier != null) {
+			sendBarrier.pass();
+		}
+		put(destinationQ, message);
+	}
+
+	/**
+	 * Puts a copy of the given bytes to the queue.
+	 */
+	@Override
+	public void sendMessage(String destinationQ, byte[] message, int offset, int length) throws Exception {
+		if (!connected) {
+			throw new Exception("Transport not connected.");
+		}
+		sendQueues.add(destinationQ);
+		byte[] copy = new byte[length];
+		System.arraycopy(message, offset, copy, 0, length);
+		if (sendBarrier != null) {
+			sendBarrier.pass();
+		}
+		put(destinationQ, copy);
+	}
+
+	private void put(String queue, Object message) throws Exception {
+		BoundedRingQueue<Object> q = qmgr.getQueue(queue);
+		if (!q.offer(message)) {
+			// Queue is full, wait a while for a receiver to make space
+			long deadline = System.nanoTime() + PUT_WAIT;
+			while (!q.offer(message)) {
+				if (System.nanoTime() - deadline > 0) {
+					throw new Exception("Queue " + queue + " full.");
+				}
+				LockSupport.parkNanos(PARK_TIME);
+			}
+		}
+		qmgr.wakeWaiter(queue);
+	}
+
+	/**
+	 * Puts are visible straight away so there is nothing to commit.
+	 */
+	@Override
+	public void flushSends() throws Exception {
+	}
+
+	@Override
+	public void flushSendsIfDue(long idleMillis) throws Exception {
+	}
+
+	@Override
+	public int getUncommittedSends() {
+		return 0;
+	}
+
+	@Override
+	public void setSendBarrier(SendBarrier barrier) {
+		sendBarrier = barrier;
+	}
+
+	@Override
+	public String receiveMessage(String queue) throws Exception {
+		if (!connected) {
+			throw new Exception("Transport not connected.");
+		}
+		receiveQueues.add(queue);
+		Object message = take(queue, qmgr.getQueue(queue));
+		if (message == null) {
+			return "";
+		}
+		if (message instanceof byte[]) {
+			return new String((byte[]) message, StandardCharsets.US_ASCII);
+		}
+		return (String) message;
+	}
+
+	@Override
+	public int receiveMessage(String queue, byte[] buffer) throws Exception {
+		if (!connected) {
+			throw new Exception("Transport not connected.");
+		}
+		receiveQueues.add(queue);
+		Object message = take(queue, qmgr.getQueue(queue));
+		if (message == null) {
+			return 0;
+		}
+		byte[] bytes;
+		if (message instanceof byte[]) {
+			bytes = (byte[]) message;
+		} else {
+			bytes = ((String) message).getBytes(StandardCharsets.US_ASCII);
+		}
+		if (bytes.length > buffer.length) {
+			throw new Exception("Message of " + bytes.length + " bytes too large for buffer.");
+		}
+		System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+		return bytes.length;
+	}
+
+	/**
+	 * Takes up to max messages from the queue, waiting for the first one in the
+	 * same way as receiveMessage. The messages are held until commit, a rollback
+	 * gives them back to be received again first, in the same order.
+	 */
+	@Override
+	public int receiveBatch(String queue, int max, SwiftMessageListener listener) throws Exception {
+		if (!connected) {
+			throw new Exception("Transport not connected.");
+		}
+		receiveQueues.add(queue);
+		BoundedRingQueue<Object> q = qmgr.getQueue(queue);
+		Object message = take(queue, q);
+		int count = 0;
+		while (message != null) {
+			uncommittedQueues.add(queue);
+			uncommittedMessages.add(message);
+			deliver(message, listener);
+			count++;
+			if (count >= max) {
+				break;
+			}
+			message = poll(queue, q);
+		}
+		return count;
+	}
+
+	@Override
+	public void commit() throws Exception {
+		uncommittedQueues.clear();
+		uncommittedMessages.clear();
+	}
+
+	/**
+	 * Gives back every message received since the last commit. They are received
+	 * again before anything else on their queues, in the order they were first
+	 * received.
+	 */
+	@Override
+	public void rollback() throws Exception {
+		// Backwards so each goes in front of those after it
+		for (int i = uncommittedMessages.size() - 1; i >= 0; i--) {
+			backedOut.computeIfAbsent(uncommittedQueues.get(i), q -> new ArrayDeque<Object>())
+					.addFirst(uncommittedMessages.get(i));
+		}
+		uncommittedQueues.clear();
+		uncommittedMessages.clear();
+	}
+
+	/**
+	 * Takes the next message given back by a rollback for the queue, or if there
+	 * is none from the queue itself.
+	 * 
+	 * @param queue The queue name.
+	 * @param q     The queue.
+	 * @return The message or null.
+	 */
+	private Object poll(String queue, BoundedRingQueue<Object> q) {
+		if (!backedOut.isEmpty()) {
+			ArrayDeque<Object> held = backedOut.get(queue);
+			if (held != null) {
+				Object message = held.pollFirst();
+				if (held.isEmpty()) {
+					backedOut.remove(queue);
+				}
+				return message;
+			}
+		}
+		return q.poll();
+	}
+
+	/**
+	 * Takes a message from the queue waiting up to RECEIVE_WAIT for one.
+	 * 
+	 * @param queue The queue name.
+	 * @param q     The queue.
+	 * @return The message or null.
+	 */
+	private Object take(String queue, BoundedRingQueue<Object> q) {
+		Object message = poll(queue, q);
+		if (message != null) {
+			return message;
+		}
+		long deadline = System.nanoTime() + RECEIVE_WAIT;
+		while (System.nanoTime() - deadline < 0) {
+			LockSupport.parkNanos(PARK_TIME);
+			message = q.poll();
+			if (message != null) {
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts a thread that takes messages from the given queue and passes them to
+	 * the listener. The thread parks while the queue is empty and is woken by
+	 * senders putting to the queue.
+	 * 
+	 * @param queue    The queue to consume messages from.
+	 * @param listener The listener to deliver messages to, or null.
+	 * @throws Exception
+	 */
+	@Override
+	public void setMessageListener(String queue, SwiftMessageListener listener) throws Exception {
+		if (!connected) {
+			throw new Exception("Transport not connected.");
+		}
+		stopDispatcher(queue);
+		if (listener == null) {
+			return;
+		}
+		receiveQueues.add(queue);
+		BoundedRingQueue<Object> q = qmgr.getQueue(queue);
+		Thread t = new Thread(() -> {
+			Thread me = Thread.currentThread();
+			while (dispatchers.get(queue) == me) {
+				Object message = q.poll();
+				if (message == null) {
+					// Wait for a sender to wake us. The timeout covers any missed wake up.
+					LockSupport.parkNanos(q, PARK_IDLE);
+					continue;
+				}
+				try {
+					deliver(message, listener);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "InMemory listener " + queue);
+		t.setDaemon(true);
+		dispatchers.put(queue, t);
+		qmgr.setWaiter(queue, t);
+		t.start();
+	}
+
+	/**
+	 * Passes a message to the listener in the form it was sent.
+	 */
+	private static void deliver(Object message, SwiftMessageListener listener) {
+		if (message instanceof byte[]) {
+			byte[] bytes = (byte[]) message;
+			listener.onMessage(bytes, 0, bytes.length);
+		} else {
+			listener.onMessage((String) message);
+		}
+	}
+
+	private void stopDispatcher(String queue) {
+		Thread t = dispatchers.remove(queue);
+		if (t == null) {
+			return;
+		}
+		qmgr.setWaiter(queue, null);
+		LockSupport.unpark(t);
+		if (t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Stops any listeners and puts any messages given back by a rollback and not
+	 * received again back on their queues.
+	 */
+	@Override
+	public void closeConnection() {
+		for (String queue : dispatchers.keySet()) {
+			stopDispatcher(queue);
+		}
+		for (Map.Entry<String, ArrayDeque<Object>> held : backedOut.entrySet()) {
+			for (Object message : held.getValue()) {
+				try {
+					put(held.getKey(), message);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		backedOut.clear();
+		connected = false;
+		sendQueues.clear();
+		receiveQueues.clear();
+	}
+
+	@Override
+	public void printStats() {
+		System.out.println("InMemory: producers[" + getOpenProducerCount() + "] consumers["
+				+ getOpenConsumerCount() + "]");
+	}
+
+	@Override
+	public int getOpenProducerCount() {
+		return sendQueues.size();
+	}
+
+	@Override
+	public int getOpenConsumerCount() {
+		return receiveQueues.size();
+	}
+}
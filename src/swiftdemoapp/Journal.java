@@ -0,0 +1,446 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append only journal of every change to a bank's account balances, kept in
+ * memory mapped segment files "<name>.journal.0", "<name>.journal.1" and so on.
+ * 
+ * Each entry is a fixed 32 byte record of the account number, the type of
+ * change, the amount and the session and sequence number of the SWIFT message
+ * that caused it. Many threads can append at once, each claims the next record
+ * with an atomic add and writes it in place. The last field written is a check
+ * value made from the others, so a record that was only partly written when
+ * the program died is never read back.
+ * 
+ * A sync thread writes records to disk in groups. It forces every record that
+ * has been completely written since the last sync with one call and then wakes
+ * any threads waiting for their records to be on disk, so the cost of each
+ * sync is shared by every record in it.
+ */
+public class Journal {
+
+	/**
+	 * An account was opened, or the journal was started, with the amount as its
+	 * balance.
+	 */
+	public static final int OPEN = 1;
+	/**
+	 * Money was deposited into an account.
+	 */
+	public static final int CREDIT = 2;
+	/**
+	 * Money was taken from an account.
+	 */
+	public static final int DEBIT = 3;
+
+	/**
+	 * Receives each record read back from a journal.
+	 */
+	public interface Replayer {
+		/**
+		 * Handles one record.
+		 * 
+		 * @param type    OPEN, CREDIT or DEBIT.
+		 * @param high    The packed first digits of the account number.
+		 * @param low     The packed remaining digits of the account number.
+		 * @param amount  The amount of the change, never negative.
+		 * @param session The session of the message that made the change.
+		 * @param seq     The sequence number of the message that made the change.
+		 */
+		void replay(int type, int high, long low, long amount, int session, int seq);
+	}
+
+	// Record layout
+	private static final int RECORD_SIZE = 32;
+	private static final int LOW_OFFSET = 0;
+	private static final int HIGH_OFFSET = 8;
+	private static final int TYPE_OFFSET = 9;
+	private static final int SESSION_OFFSET = 12;
+	private static final int AMOUNT_OFFSET = 16;
+	private static final int SEQ_OFFSET = 24;
+	private static final int CHECK_OFFSET = 28;
+
+	// How long the sync thread sleeps when nothing has been appended
+	private static final long PARK_IDLE = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private final Path dir;
+	private final String name;
+	private final int recordsPerSegment;
+	private final long syncNanos;
+	// Mapped segments, only added to under the lock. The array is replaced so it
+	// can be read without the lock.
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private final ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+
+	// The next record to claim and every record before durable is on disk
+	private final AtomicLong next = new AtomicLong();
+	private volatile long durable;
+	private final Object durableLock = new Object();
+
+	private final Thread syncer;
+	private volatile boolean stop = false;
+	// Sync statistics, only written by the sync thread
+	private volatile long syncs = 0;
+	private volatile long syncedRecords = 0;
+	private volatile long maxSyncNanos = 0;
+
+	/**
+	 * Opens the journal with the given name in a directory, creating it if it
+	 * does not exist, and finds the end of the records already in it. Anything
+	 * after the last complete record is cleared.
+	 * 
+	 * @param dir          The directory holding the segment files.
+	 * @param name         The name of the journal, for example the bank's SWIFT
+	 *                     name.
+	 * @param segmentBytes The size of each segment file.
+	 * @param syncMillis   The most time between syncs while records are being
+	 *                     appended and nobody is waiting for them.
+	 * @throws Exception
+	 */
+	public Journal(Path dir, String name, int segmentBytes, long syncMillis) throws Exception {
+		if (segmentBytes < RECORD_SIZE) {
+			throw new Exception("Journal segments must hold at least one record.");
+		}
+		Files.createDirectories(dir);
+		this.dir = dir;
+		this.name = name;
+		recordsPerSegment = segmentBytes / RECORD_SIZE;
+		syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(syncMillis, 1));
+
+		// Map the segments already there and find the last complete record
+		int count = 0;
+		while (Files.exists(segmentPath(count))) {
+			count++;
+		}
+		long end = 0;
+		boolean found = false;
+		for (int s = 0; s < count && !found; s++) {
+			MappedByteBuffer b = segment(s);
+			for (int r = 0; r < recordsPerSegment; r++) {
+				if (!valid(b, r * RECORD_SIZE)) {
+					found = true;
+					break;
+				}
+				end++;
+			}
+		}
+		clearFrom(end, count);
+		next.set(end);
+		durable = end;
+
+		syncer = new Thread(this::sync, "Journal sync " + name);
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	private Path segmentPath(int segment) {
+		return dir.resolve(name + ".journal." + segment);
+	}
+
+	/**
+	 * Returns a segment, creating and mapping it if needed.
+	 */
+	private MappedByteBuffer segment(int segment) throws IOException {
+		MappedByteBuffer[] mapped = segments;
+		if (segment < mapped.length) {
+			return mapped[segment];
+		}
+		synchronized (channels) {
+			mapped = segments;
+			while (mapped.length <= segment) {
+				FileChannel channel = FileChannel.open(segmentPath(mapped.length), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+						(long) recordsPerSegment * RECORD_SIZE);
+				channels.add(channel);
+				MappedByteBuffer[] grown = new MappedByteBuffer[mapped.length + 1];
+				System.arraycopy(mapped, 0, grown, 0, mapped.length);
+				grown[mapped.length] = b;
+				mapped = grown;
+				segments = mapped;
+			}
+			return mapped[segment];
+		}
+	}
+
+	/**
+	 * Zeroes every record from the given one to the end of its segment and
+	 * deletes any later segments, so old records past a gap are never read back.
+	 */
+	private void clearFrom(long record, int existingSegments) throws IOException {
+		int first = (int) (record / recordsPerSegment);
+		if (first < existingSegments) {
+			MappedByteBuffer b = segment(first);
+			for (int i = (int) (record % recordsPerSegment) * RECORD_SIZE; i < recordsPerSegment * RECORD_SIZE; i++) {
+				b.put(i, (byte) 0);
+			}
+			b.force();
+		}
+		for (int s = existingSegments - 1; s > first; s--) {
+			Files.deleteIfExists(segmentPath(s));
+		}
+	}
+
+	/**
+	 * Appends a record. The record is in memory when this returns but may not yet
+	 * be on disk, use awaitDurable to wait for it.
+	 * 
+	 * @param type    OPEN, CREDIT or DEBIT.
+	 * @param high    The packed first digits of the account number.
+	 * @param low     The packed remaining digits of the account number.
+	 * @param amount  The amount of the change.
+	 * @param session The session of the message making the change.
+	 * @param seq     The sequence number of the message making the change.
+	 * @return The position after the record, to give to awaitDurable.
+	 * @throws IOException If a new segment could not be created.
+	 */
+	public long append(int type, int high, long low, long amount, int session, int seq) throws IOException {
+		long record = next.getAndIncrement();
+		MappedByteBuffer b = segment((int) (record / recordsPerSegment));
+		int pos = (int) (record % recordsPerSegment) * RECORD_SIZE;
+		b.putLong(pos + LOW_OFFSET, low);
+		b.put(pos + HIGH_OFFSET, (byte) high);
+		b.put(pos + TYPE_OFFSET, (byte) type);
+		b.putInt(pos + SESSION_OFFSET, session);
+		b.putLong(pos + AMOUNT_OFFSET, amount);
+		b.putInt(pos + SEQ_OFFSET, seq);
+		// Written last, the record is not complete until the check is there
+		INTS.setRelease(b, pos + CHECK_OFFSET, check(type, high, low, amount, session, seq));
+		return record + 1;
+	}
+
+	/**
+	 * Waits until every record up to the given position is on disk.
+	 * 
+	 * @param position A position returned by append.
+	 * @throws InterruptedException
+	 */
+	public void awaitDurable(long position) throws InterruptedException {
+		if (durable >= position) {
+			return;
+		}
+		LockSupport.unpark(syncer);
+		synchronized (durableLock) {
+			while (durable < position) {
+				if (stop && !syncer.isAlive()) {
+					return;
+				}
+				durableLock.wait(10);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of records in the journal.
+	 * 
+	 * @return The record count.
+	 */
+	public long size() {
+		return next.get();
+	}
+
+	/**
+	 * Reads back every complete record in the order they were appended.
+	 * 
+	 * @param replayer Given each record.
+	 * @throws IOException If a segment cannot be read.
+	 */
+	public void replay(Replayer replayer) throws IOException {
+		replay(0, replayer);
+	}
+
+	/**
+	 * Reads back every complete record from the given position in the order they
+	 * were appended.
+	 * 
+	 * @param from     The position of the first record to read, from size.
+	 * @param replayer Given each record.
+	 * @throws IOException If a segment cannot be read.
+	 */
+	public void replay(long from, Replayer replayer) throws IOException {
+		long end = next.get();
+		for (long record = from; record < end; record++) {
+			MappedByteBuffer b = segment((int) (record / recordsPerSegment));
+			int pos = (int) (record % recordsPerSegment) * RECORD_SIZE;
+			if (!valid(b, pos)) {
+				// Claimed but not yet written, nothing after it can be relied on
+				return;
+			}
+			replayer.replay(b.get(pos + TYPE_OFFSET), b.get(pos + HIGH_OFFSET), b.getLong(pos + LOW_OFFSET),
+					b.getLong(pos + AMOUNT_OFFSET), b.getInt(pos + SESSION_OFFSET), b.getInt(pos + SEQ_OFFSET));
+		}
+	}
+
+	/**
+	 * Throws away every record, leaving an empty journal. Must not be called
+	 * while other threads are appending.
+	 * 
+	 * @throws IOException If the segments cannot be cleared.
+	 */
+	public void reset() throws IOException {
+		synchronized (channels) {
+			int count = 0;
+			while (Files.exists(segmentPath(count))) {
+				count++;
+			}
+			// Keep only the first segment mapped, the rest are deleted
+			while (channels.size() > 1) {
+				channels.remove(channels.size() - 1).close();
+			}
+			if (segments.length > 1) {
+				segments = new MappedByteBuffer[] { segments[0] };
+			}
+			clearFrom(0, count);
+			next.set(0);
+			durable = 0;
+		}
+	}
+
+	/**
+	 * Syncs every record written so far, stops the sync thread and closes the
+	 * segment files.
+	 */
+	public void close() {
+		stop = true;
+		LockSupport.unpark(syncer);
+		try {
+			syncer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (channels) {
+			for (FileChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			channels.clear();
+		}
+	}
+
+	/**
+	 * Prints the records written, the number of syncs, the average records in each
+	 * sync and the longest sync.
+	 */
+	public void printStats() {
+		long s = syncs;
+		System.out.println("Journal " + name + ": records[" + next.get() + "] syncs[" + s + "] records per sync["
+				+ (s == 0 ? 0 : syncedRecords / s) + "] max sync[" + TimeUnit.NANOSECONDS.toMicros(maxSyncNanos)
+				+ "us]");
+	}
+
+	/**
+	 * The sync thread. Finds how far the records are completely written, forces
+	 * them to disk and wakes anyone waiting, until stopped with nothing left to
+	 * sync.
+	 */
+	private void sync() {
+		while (true) {
+			long from = durable;
+			long to = from;
+			long claimed = next.get();
+			try {
+				while (to < claimed) {
+					MappedByteBuffer b = segment((int) (to / recordsPerSegment));
+					if (!valid(b, (int) (to % recordsPerSegment) * RECORD_SIZE)) {
+						break;
+					}
+					to++;
+				}
+				if (to > from) {
+					long start = System.nanoTime();
+					force(from, to);
+					long took = System.nanoTime() - start;
+					synchronized (durableLock) {
+						durable = to;
+						durableLock.notifyAll();
+					}
+					syncs++;
+					syncedRecords += to - from;
+					if (took > maxSyncNanos) {
+						maxSyncNanos = took;
+					}
+					continue;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (stop && next.get() == durable) {
+				return;
+			}
+			LockSupport.parkNanos(this, to < claimed ? TimeUnit.MICROSECONDS.toNanos(10) : syncNanos);
+		}
+	}
+
+	/**
+	 * Forces the records between two positions to disk, a segment at a time.
+	 */
+	private void force(long from, long to) throws IOException {
+		while (from < to) {
+			int s = (int) (from / recordsPerSegment);
+			long segmentEnd = (long) (s + 1) * recordsPerSegment;
+			long end = Math.min(to, segmentEnd);
+			int offset = (int) (from % recordsPerSegment) * RECORD_SIZE;
+			segment(s).force(offset, (int) (end - from) * RECORD_SIZE);
+			from = end;
+		}
+	}
+
+	private static boolean valid(MappedByteBuffer b, int pos) {
+		int check = (int) INTS.getAcquire(b, pos + CHECK_OFFSET);
+		if (check == 0) {
+			return false;
+		}
+		return check == check(b.get(pos + TYPE_OFFSET), b.get(pos + HIGH_OFFSET), b.getLong(pos + LOW_OFFSET),
+				b.getLong(pos + AMOUNT_OFFSET), b.getInt(pos + SESSION_OFFSET), b.getInt(pos + SEQ_OFFSET));
+	}
+
+	/**
+	 * Mixes every field of a record into a check value that is never 0.
+	 */
+	private static int check(int type, int high, long low, long amount, int session, int seq) {
+		long h = low * 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 29)) + ((long) (high & 0xff) << 8 | (type & 0xff));
+		h = h * 0xBF58476D1CE4E5B9L + amount;
+		h = h * 0x94D049BB133111EBL + ((long) session << 32 | (seq & 0xffffffffL));
+		h ^= h >>> 31;
+		int check = (int) (h ^ (h >>> 32));
+		return check == 0 ? 1 : check;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in microseconds that many threads can
+ * record into at once without locking.
+ * 
+ * Values below 128 each have their own bucket. Above that each power of two is
+ * split into 64 buckets, so a value read back is never more than about 1.6% out
+ * and every value a long can hold fits in under 4000 buckets.
+ */
+public class LatencyHistogram {
+
+	// Values below this each have their own bucket
+	private static final int LINEAR_BITS = 7;
+	private static final int LINEAR = 1 << LINEAR_BITS;
+	// Buckets each power of two above LINEAR is split into
+	private static final int SUB_BUCKETS = LINEAR / 2;
+	private static final int BUCKETS = LINEAR + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+	// The difference between System.nanoTime and the epoch, so times taken with
+	// nanoTime can be sent to another process
+	private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the current time in microseconds since the epoch, with the
+	 * resolution of System.nanoTime.
+	 * 
+	 * @return Microseconds since the epoch.
+	 */
+	public static long nowMicros() {
+		return toEpochMicros(System.nanoTime());
+	}
+
+	/**
+	 * Converts a System.nanoTime value into microseconds since the epoch.
+	 * 
+	 * @param nanoTime A value from System.nanoTime.
+	 * @return Microseconds since the epoch.
+	 */
+	public static long toEpochMicros(long nanoTime) {
+		return (nanoTime + EPOCH_OFFSET_NANOS) / 1000;
+	}
+
+	/**
+	 * Records a latency. Negative values, from clocks that disagree, are counted
+	 * as 0.
+	 * 
+	 * @param micros The latency in microseconds.
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		counts.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of latencies recorded.
+	 * 
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the largest latency recorded.
+	 * 
+	 * @return The maximum in microseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the latency that the given percentage of recorded latencies are at
+	 * or below. Latencies recorded while this runs may or may not be included.
+	 * 
+	 * @param percentile The percentage, for example 99.9.
+	 * @return The latency in microseconds, 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				// Report the top of the bucket, but never more than the real maximum
+				return Math.min(highest(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns the bucket a value is counted in.
+	 */
+	static int bucket(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (LINEAR_BITS - 1);
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the highest value counted in a bucket.
+	 */
+	static long highest(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
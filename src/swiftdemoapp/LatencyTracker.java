@@ -0,0 +1,141 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a latency histogram for each pair of sending and receiving banks,
+ * measuring from when the sender timestamped a payment to when the receiver
+ * deposited it.
+ */
+public class LatencyTracker {
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> histograms = new ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>>();
+	private Thread reporter = null;
+
+	/**
+	 * Returns the histogram for payments from one bank to another, creating it if
+	 * needed.
+	 * 
+	 * @param sendBank The SWIFT name of the sending bank.
+	 * @param destBank The SWIFT name of the receiving bank.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getHistogram(String sendBank, String destBank) {
+		ConcurrentHashMap<String, LatencyHistogram> to = histograms.get(sendBank);
+		if (to == null) {
+			to = histograms.computeIfAbsent(sendBank, k -> new ConcurrentHashMap<String, LatencyHistogram>());
+		}
+		LatencyHistogram h = to.get(destBank);
+		if (h == null) {
+			h = to.computeIfAbsent(destBank, k -> new LatencyHistogram());
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the histogram to record a message's latency in once it is deposited.
+	 * 
+	 * @param v        View of the SWIFT MT103 message.
+	 * @param destBank The SWIFT name of the receiving bank.
+	 * @return The histogram or null if the message has no send time.
+	 */
+	public LatencyHistogram getHistogram(SWIFTview v, String destBank) {
+		if (v.getSendTime() < 0) {
+			return null;
+		}
+		return getHistogram(v.getSendBank(), destBank);
+	}
+
+	/**
+	 * Records the latency of a message that has just been deposited.
+	 * 
+	 * @param v        View of the SWIFT MT103 message.
+	 * @param destBank The SWIFT name of the receiving bank.
+	 */
+	public void record(SWIFTview v, String destBank) {
+		long sendTime = v.getSendTime();
+		if (sendTime < 0) {
+			return;
+		}
+		getHistogram(v.getSendBank(), destBank).record(LatencyHistogram.nowMicros() - sendTime);
+	}
+
+	/**
+	 * Starts a daemon thread printing the latencies every interval.
+	 * 
+	 * @param seconds Seconds between reports.
+	 */
+	public synchronized void startReporting(long seconds) {
+		if (reporter != null || seconds <= 0) {
+			return;
+		}
+		reporter = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+				} catch (InterruptedException e) {
+					return;
+				}
+				printStats();
+			}
+		}, "Latency reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Stops the thread printing the latencies.
+	 */
+	public synchronized void stopReporting() {
+		if (reporter != null) {
+			reporter.interrupt();
+			reporter = null;
+		}
+	}
+
+	/**
+	 * Prints the count, p50, p99, p99.9 and maximum latency in milliseconds for
+	 * each pair of banks, since the start of the run.
+	 */
+	public void printStats() {
+		StringBuilder out = new StringBuilder("Payment latency, sender to deposit:");
+		for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> from : new TreeMap<String, ConcurrentHashMap<String, LatencyHistogram>>(
+				histograms).entrySet()) {
+			for (Map.Entry<String, LatencyHistogram> to : new TreeMap<String, LatencyHistogram>(from.getValue())
+					.entrySet()) {
+				LatencyHistogram h = to.getValue();
+				out.append(System.lineSeparator()).append("  ").append(from.getKey()).append("->")
+						.append(to.getKey()).append(": count[").append(h.getCount()).append("] p50[")
+						.append(millis(h.getPercentile(50))).append("ms] p99[").append(millis(h.getPercentile(99)))
+						.append("ms] p99.9[").append(millis(h.getPercentile(99.9))).append("ms] max[")
+						.append(millis(h.getMax())).append("ms]");
+			}
+		}
+		System.out.println(out);
+	}
+
+	private static String millis(long micros) {
+		return String.format("%.3f", micros / 1000.0);
+	}
+}
@@ -18,8 +18,16 @@ limitations under the License.
 */
 package swiftdemoapp;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.Destination;
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
@@ -37,11 +45,36 @@ import javax.jms.TextMessage;
  * It is based off the JMSConsumer and JMSProducer sample applications provided
  * with IBM MQ.
  */
-public class MQI {
+public class MQI implements MessageTransport {
 
 	private Connection connection = null;
 	private Session session = null;
 
+	// Destinations, producers and consumers are expensive to create as each one
+	// costs a round trip to the queue manager. They are created once per queue
+	// and kept until the connection is closed.
+	private final Map<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+	private final Map<String, MessageProducer> producers = new ConcurrentHashMap<String, MessageProducer>();
+	private final Map<String, MessageConsumer> consumers = new ConcurrentHashMap<String, MessageConsumer>();
+
+	// Batched sends. When batchSize is above 0 the session is transacted and
+	// sends are committed every batchSize messages or batchNanos, whichever comes
+	// first.
+	private boolean receiveTransacted = false;
+	private int batchSize = 0;
+	private long batchNanos = 0;
+	private int pending = 0;
+	private long batchStart = 0;
+	// Passed before each send is committed, see SendBarrier
+	private SendBarrier sendBarrier = null;
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong committedMessages = new AtomicLong();
+	private final AtomicLong commitNanos = new AtomicLong();
+	private final AtomicLong maxCommitNanos = new AtomicLong();
+
+	// Bytes messages given to listeners are read into here, grown if too small
+	private byte[] receiveBuffer = new byte[4096];
+
 	private String qmgrname;
 	private String host;
 	private int port;
@@ -55,10 +88,48 @@ public class MQI {
 	}
 
 	/**
-	 * Creates a connection and session to an IBM MQ queue manager.
+	 * Turns on batched sends. The session will be transacted and messages sent are
+	 * committed together once the given number have been sent or the given time
+	 * has passed since the first send of the batch, whichever comes first. Must be
+	 * called before createConnection.
+	 * 
+	 * @param messages Messages per commit, 0 turns batching off.
+	 * @param millis   Longest time a sent message will wait for its commit.
+	 * @throws Exception
+	 */
+	public void setSendBatching(int messages, long millis) throws Exception {
+		if (session != null) {
+			throw new Exception("Send batching must be set before connecting.");
+		}
+		if (messages < 0 || millis < 0) {
+			throw new Exception("Invalid batch size " + messages + " or time " + millis);
+		}
+		batchSize = messages;
+		batchNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Makes the session transacted so messages received with receiveBatch are only
+	 * removed from the queue on commit. Any sends made on the session are
+	 * committed along with them. Must be called before createConnection.
 	 * 
+	 * @param transacted True for a transacted session.
 	 * @throws Exception
 	 */
+	public void setReceiveTransacted(boolean transacted) throws Exception {
+		if (session != null) {
+			throw new Exception("Transacted receives must be set before connecting.");
+		}
+		receiveTransacted = transacted;
+	}
+
+	/**
+	 * Creates a connection and session to an IBM MQ queue manager. The session is
+	 * transacted if send batching or transacted receives have been turned on.
+	 * 
+	 * @throws Exception
+	 */
+	@Override
 	public void createConnection() throws Exception {
 		try {
 			JmsFactoryFactory ff = JmsFactoryFactory.getInstance(WMQConstants.WMQ_PROVIDER);
@@ -75,7 +146,14 @@ public class MQI {
 
 			// Create JMS connection
 			connection = cf.createConnection();
-			session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			if (batchSize > 0 || receiveTransacted) {
+				session = connection.createSession(true, Session.SESSION_TRANSACTED);
+			} else {
+				session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			}
+
+			// Start the connection once so consumers can receive straight away
+			connection.start();
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw e;
@@ -83,48 +161,457 @@ public class MQI {
 	}
 
 	/**
-	 * Creates a producer, connects to the queue manager via the previously
-	 * establish connection and sends the given message to the given queue.
+	 * Sends the given message to the given queue using the producer cached for
+	 * that queue. The producer is created on first use. When send batching is on
+	 * the message is only committed once the batch is full or its time is up.
 	 * 
 	 * @param destinationQ The queue to send the message to.
 	 * @param message      The message.
 	 * @throws Exception
 	 */
+	@Override
 	public void sendMessage(String destinationQ, String message) throws Exception {
 		if (session == null) {
 			throw new Exception("MQI not connected.");
 		}
-		Destination destination = session.createQueue(destinationQ);
-		MessageProducer producer = session.createProducer(destination);
-		connection.start();
+		MessageProducer producer = getProducer(destinationQ);
 		TextMessage Tmessage = session.createTextMessage(message);
+		passUnbatched();
 		producer.send(Tmessage);
+		sent();
 	}
 
 	/**
-	 * Creates a consumer, connects to the queue manager via the previously
-	 * establish connection and recieves a message from the given queue.
+	 * Sends the given bytes to the given queue as a JMS BytesMessage using the
+	 * producer cached for that queue.
+	 * 
+	 * @param destinationQ The queue to send the message to.
+	 * @param message      Buffer holding the message.
+	 * @param offset       Where the message starts in the buffer.
+	 * @param length       The length of the message.
+	 * @throws Exception
+	 */
+	@Override
+	public void sendMessage(String destinationQ, byte[] message, int offset, int length) throws Exception {
+		if (session == null) {
+			throw new Exception("MQI not connected.");
+		}
+		MessageProducer producer = getProducer(destinationQ);
+		BytesMessage Bmessage = session.createBytesMessage();
+		Bmessage.writeBytes(message, offset, length);
+		passUnbatched();
+		producer.send(Bmessage);
+		sent();
+	}
+
+	@Override
+	public void setSendBarrier(SendBarrier barrier) {
+		sendBarrier = barrier;
+	}
+
+	/**
+	 * Passes the send barrier before a send that is not batched, as it can be
+	 * seen as soon as it is sent.
+	 */
+	private void passUnbatched() throws Exception {
+		if (batchSize <= 0 && sendBarrier != null) {
+			sendBarrier.pass();
+		}
+	}
+
+	/**
+	 * Counts a message sent in the current batch and commits the batch if it is
+	 * full or its time is up.
+	 */
+	private void sent() throws Exception {
+		if (batchSize > 0) {
+			long now = System.nanoTime();
+			if (pending == 0) {
+				batchStart = now;
+			}
+			pending++;
+			if (pending >= batchSize || now - batchStart >= batchNanos) {
+				commitBatch();
+			}
+		}
+	}
+
+	/**
+	 * Commits any messages sent but not yet committed.
+	 * 
+	 * @throws Exception
+	 */
+	@Override
+	public void flushSends() throws Exception {
+		if (pending > 0) {
+			commitBatch();
+		}
+	}
+
+	/**
+	 * Commits the current batch if its time would run out while the sender is
+	 * idle.
+	 * 
+	 * @param idleMillis How long the sender is about to be idle for.
+	 * @throws Exception
+	 */
+	@Override
+	public void flushSendsIfDue(long idleMillis) throws Exception {
+		if (pending > 0
+				&& System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idleMillis) - batchStart >= batchNanos) {
+			commitBatch();
+		}
+	}
+
+	@Override
+	public int getUncommittedSends() {
+		return pending;
+	}
+
+	/**
+	 * Commits the current batch once the send barrier is passed. If the barrier
+	 * or the commit fails every message in the batch is rolled back and the
+	 * sender is told how many were lost so it can return the money for them.
+	 * 
+	 * @throws SendsRolledBackException If the batch was rolled back.
+	 */
+	private void commitBatch() throws SendsRolledBackException {
+		long start = System.nanoTime();
+		try {
+			if (sendBarrier != null) {
+				sendBarrier.pass();
+			}
+			session.commit();
+		} catch (Exception e) {
+			int lost = pending;
+			pending = 0;
+			try {
+				session.rollback();
+			} catch (JMSException e2) {
+				e2.printStackTrace();
+			}
+			throw new SendsRolledBackException(lost, e);
+		}
+		long took = System.nanoTime() - start;
+		commits.incrementAndGet();
+		committedMessages.addAndGet(pending);
+		commitNanos.addAndGet(took);
+		maxCommitNanos.accumulateAndGet(took, Math::max);
+		pending = 0;
+	}
+
+	/**
+	 * Returns the average number of messages in each committed batch.
+	 * 
+	 * @return Average batch size or 0 if nothing has been committed.
+	 */
+	public double getAverageBatchSize() {
+		long c = commits.get();
+		return c == 0 ? 0 : (double) committedMessages.get() / c;
+	}
+
+	/**
+	 * Returns the average time taken by a batch commit.
+	 * 
+	 * @return Average commit time in microseconds.
+	 */
+	public long getAverageCommitMicros() {
+		long c = commits.get();
+		return c == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(commitNanos.get() / c);
+	}
+
+	/**
+	 * Returns the longest time taken by a batch commit.
+	 * 
+	 * @return Max commit time in microseconds.
+	 */
+	public long getMaxCommitMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxCommitNanos.get());
+	}
+
+	/**
+	 * Recieves a message from the given queue using the consumer cached for that
+	 * queue. The consumer is created on first use.
 	 * 
 	 * @param queue The queue to consume a message from.
 	 * @return The received message or "";
 	 * @throws Exception
 	 */
+	@Override
 	public String receiveMessage(String queue) throws Exception {
 		if (session == null) {
 			throw new Exception("MQI not connected.");
 		}
-		Destination destination = session.createQueue(queue);
-		MessageConsumer consumer = session.createConsumer(destination);
-
-		// Start the connection
-		connection.start();
+		MessageConsumer consumer = getConsumer(queue);
 
 		Message message;
 		message = consumer.receive(10);
 		if (message == null) {
 			return "";
 		}
+		if (message instanceof BytesMessage) {
+			BytesMessage bm = (BytesMessage) message;
+			byte[] bytes = new byte[(int) bm.getBodyLength()];
+			bm.readBytes(bytes);
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
 
 		return message.getBody(String.class);
 	}
+
+	/**
+	 * Recieves a message from the given queue into the given buffer using the
+	 * consumer cached for that queue. A bytes message is copied straight into the
+	 * buffer, a text message is converted to ASCII.
+	 * 
+	 * @param queue  The queue to consume a message from.
+	 * @param buffer Where to put the message.
+	 * @return The length of the message or 0 if none arrived.
+	 * @throws Exception If the message is larger than the buffer.
+	 */
+	@Override
+	public int receiveMessage(String queue, byte[] buffer) throws Exception {
+		if (session == null) {
+			throw new Exception("MQI not connected.");
+		}
+		MessageConsumer consumer = getConsumer(queue);
+
+		Message message = consumer.receive(10);
+		if (message == null) {
+			return 0;
+		}
+		if (message instanceof BytesMessage) {
+			BytesMessage bm = (BytesMessage) message;
+			long length = bm.getBodyLength();
+			if (length > buffer.length) {
+				throw new Exception("Message of " + length + " bytes too large for buffer.");
+			}
+			return bm.readBytes(buffer, (int) length);
+		}
+		byte[] bytes = message.getBody(String.class).getBytes(StandardCharsets.US_ASCII);
+		if (bytes.length > buffer.length) {
+			throw new Exception("Message of " + bytes.length + " bytes too large for buffer.");
+		}
+		System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+		return bytes.length;
+	}
+
+	/**
+	 * Passes a received message to the listener, as bytes if it is a
+	 * BytesMessage.
+	 */
+	private void deliver(Message message, SwiftMessageListener listener) throws JMSException {
+		if (message instanceof BytesMessage) {
+			BytesMessage bm = (BytesMessage) message;
+			long length = bm.getBodyLength();
+			if (length > receiveBuffer.length) {
+				receiveBuffer = new byte[(int) length];
+			}
+			int read = bm.readBytes(receiveBuffer, (int) length);
+			listener.onMessage(receiveBuffer, 0, read);
+		} else {
+			listener.onMessage(message.getBody(String.class));
+		}
+	}
+
+	/**
+	 * Recieves up to max messages using the consumer cached for the queue. Waits
+	 * for the first message in the same way as receiveMessage then takes any others
+	 * already on the queue without waiting. When the session is transacted the
+	 * messages stay under the unit of work until commit or rollback.
+	 * 
+	 * @param queue    The queue to consume messages from.
+	 * @param max      The most messages to receive.
+	 * @param listener The listener to pass each message to.
+	 * @return The number of messages received.
+	 * @throws Exception
+	 */
+	@Override
+	public int receiveBatch(String queue, int max, SwiftMessageListener listener) throws Exception {
+		if (session == null) {
+			throw new Exception("MQI not connected.");
+		}
+		MessageConsumer consumer = getConsumer(queue);
+		Message message = consumer.receive(10);
+		int count = 0;
+		while (message != null) {
+			deliver(message, listener);
+			count++;
+			if (count >= max) {
+				break;
+			}
+			message = consumer.receiveNoWait();
+		}
+		return count;
+	}
+
+	/**
+	 * Commits the session if it is transacted. Any batched sends are committed as
+	 * well.
+	 * 
+	 * @throws Exception
+	 */
+	@Override
+	public void commit() throws Exception {
+		if (session == null) {
+			throw new Exception("MQI not connected.");
+		}
+		if (batchSize > 0 || receiveTransacted) {
+			if (pending > 0) {
+				commitBatch();
+			} else {
+				session.commit();
+			}
+		}
+	}
+
+	/**
+	 * Rolls back the session if it is transacted.
+	 * 
+	 * @throws Exception
+	 */
+	@Override
+	public void rollback() throws Exception {
+		if (session == null) {
+			throw new Exception("MQI not connected.");
+		}
+		if (batchSize > 0 || receiveTransacted) {
+			pending = 0;
+			session.rollback();
+		}
+	}
+
+	/**
+	 * Registers an asynchronous JMS message listener on the consumer for the
+	 * given queue which passes the body of each message to the given listener.
+	 * 
+	 * @param queue    The queue to consume messages from.
+	 * @param listener The listener to deliver messages to, or null.
+	 * @throws Exception
+	 */
+	@Override
+	public void setMessageListener(String queue, SwiftMessageListener listener) throws Exception {
+		if (session == null) {
+			throw new Exception("MQI not connected.");
+		}
+		MessageConsumer consumer = getConsumer(queue);
+		if (listener == null) {
+			consumer.setMessageListener(null);
+			return;
+		}
+		consumer.setMessageListener(message -> {
+			try {
+				deliver(message, listener);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Prints the open producers and consumers and, if batching, the batch
+	 * statistics.
+	 */
+	@Override
+	public void printStats() {
+		System.out.println("MQI " + qmgrname + ": producers[" + getOpenProducerCount() + "] consumers["
+				+ getOpenConsumerCount() + "]");
+		if (batchSize > 0) {
+			System.out.println("  batches[" + commits.get() + "] avgBatchSize["
+					+ String.format("%.1f", getAverageBatchSize()) + "] avgCommit[" + getAverageCommitMicros()
+					+ "us] maxCommit[" + getMaxCommitMicros() + "us]");
+		}
+	}
+
+	/**
+	 * Commits any batched sends then closes all cached producers and consumers
+	 * followed by the session and connection. Any failures are reported and the
+	 * remaining objects are still closed.
+	 */
+	@Override
+	public void closeConnection() {
+		try {
+			if (session != null) {
+				flushSends();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		for (MessageProducer p : producers.values()) {
+			try {
+				p.close();
+			} catch (JMSException e) {
+				e.printStackTrace();
+			}
+		}
+		producers.clear();
+		for (MessageConsumer c : consumers.values()) {
+			try {
+				c.close();
+			} catch (JMSException e) {
+				e.printStackTrace();
+			}
+		}
+		consumers.clear();
+		destinations.clear();
+		try {
+			if (session != null) {
+				session.close();
+			}
+			if (connection != null) {
+				connection.close();
+			}
+		} catch (JMSException e) {
+			e.printStackTrace();
+		}
+		session = null;
+		connection = null;
+	}
+
+	/**
+	 * Returns the number of producers currently held open.
+	 * 
+	 * @return Open producer count.
+	 */
+	@Override
+	public int getOpenProducerCount() {
+		return producers.size();
+	}
+
+	/**
+	 * Returns the number of consumers currently held open.
+	 * 
+	 * @return Open consumer count.
+	 */
+	@Override
+	public int getOpenConsumerCount() {
+		return consumers.size();
+	}
+
+	private Destination getDestination(String queue) throws JMSException {
+		Destination destination = destinations.get(queue);
+		if (destination == null) {
+			destination = session.createQueue(queue);
+			destinations.put(queue, destination);
+		}
+		return destination;
+	}
+
+	private MessageProducer getProducer(String queue) throws JMSException {
+		MessageProducer producer = producers.get(queue);
+		if (producer == null) {
+			producer = session.createProducer(getDestination(queue));
+			producers.put(queue, producer);
+		}
+		return producer;
+	}
+
+	private MessageConsumer getConsumer(String queue) throws JMSException {
+		MessageConsumer consumer = consumers.get(queue);
+		if (consumer == null) {
+			consumer = session.createConsumer(getDestination(queue));
+			consumers.put(queue, consumer);
+		}
+		return consumer;
+	}
 }
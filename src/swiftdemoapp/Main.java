@@ -18,8 +18,12 @@ limitations under the License.
 */
 package swiftdemoapp;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.function.IntFunction;
 
 /**
  * This class is the main entry point for this program. It handles setting up
@@ -27,6 +31,93 @@ import java.util.Scanner;
  */
 public class Main {
 
+	// Which transport to use, "mq" for IBM MQ or "memory" to run without a queue
+	// manager.
+	private final String transportType = System.getProperty("swiftdemo.transport", "mq");
+	// Max depth of each queue when running in memory, same as the IBM MQ default.
+	private final int memoryQueueDepth = Integer.getInteger("swiftdemo.memory.depth", 5000);
+	private InMemoryQueueManager memoryQmgr = null;
+	// Sends per commit for the senders, 0 is no batching, and the longest a send
+	// waits for its commit.
+	private final int sendBatch = Integer.getInteger("swiftdemo.send.batch", 0);
+	private final long sendBatchMillis = Long.getLong("swiftdemo.send.batchms", 100);
+	// Payments per second each sender aims for, 0 for random pauses of a few
+	// seconds, and how many payments are sent together.
+	private final double loadTps = Double.parseDouble(System.getProperty("swiftdemo.load.tps", "0"));
+	private final int loadBurst = Integer.getInteger("swiftdemo.load.burst", 1);
+	// Flow control: the payments in flight to a bank at which senders hold back,
+	// 0 for no limit, the number it must fall to before they carry on, and
+	// whether they send to another bank instead of waiting.
+	private final long flowHigh = Long.getLong("swiftdemo.flow.high", 0);
+	private final long flowLow = Long.getLong("swiftdemo.flow.low", flowHigh / 2);
+	private final boolean flowReroute = Boolean.parseBoolean(System.getProperty("swiftdemo.flow.reroute", "true"));
+	// How messages are sent between banks, "text" or "bytes".
+	private final boolean bytesWire = System.getProperty("swiftdemo.wire", "text").equalsIgnoreCase("bytes");
+	// How the receivers take messages from their bank queue, "poll", "async",
+	// "batch" or "lanes", and the messages per unit of work in batch mode.
+	private final String receiveMode = System.getProperty("swiftdemo.receiver.mode", "poll");
+	private final int receiveBatch = Integer.getInteger("swiftdemo.receiver.batch", 50);
+	// Deposit lanes per bank in "lanes" mode and the messages each lane can hold.
+	private final int receiveLanes = Integer.getInteger("swiftdemo.receiver.lanes", 4);
+	private final int receiveLaneDepth = Integer.getInteger("swiftdemo.receiver.lanedepth", 1024);
+
+	// Directory for memory mapped account ledgers, null keeps accounts on the
+	// heap, and the most accounts each new ledger can hold.
+	private final String ledgerDir = System.getProperty("swiftdemo.ledger.dir");
+	private final int ledgerCapacity = Integer.getInteger("swiftdemo.ledger.capacity", 1000000);
+
+	// What kind of thread the senders and receivers run on, "platform" or
+	// "virtual".
+	private final String threadMode = System.getProperty("swiftdemo.threads", "platform");
+
+	// At shutdown the longest to wait for the payments in flight to be deposited
+	// and for the senders or the receivers to end.
+	private final long drainMillis = Long.getLong("swiftdemo.drain.ms", 5000);
+	private final long stopMillis = Long.getLong("swiftdemo.stop.ms", 10000);
+
+	// Seconds between printing the payment latencies, 0 to only print them at
+	// the end.
+	private final long latencyInterval = Long.getLong("swiftdemo.latency.interval", 10);
+	private final LatencyTracker latency = new LatencyTracker();
+
+	// Where each payment's summary is written, standard out unless a file is
+	// given, what to do when too many are waiting to be written ("drop" or
+	// "block"), how many can wait, and when and how the file is rolled over.
+	private final String auditFile = System.getProperty("swiftdemo.audit.file");
+	private final String auditPolicy = System.getProperty("swiftdemo.audit.policy", "drop");
+	private final int auditCapacity = Integer.getInteger("swiftdemo.audit.capacity", 8192);
+	private final long auditMaxBytes = Long.getLong("swiftdemo.audit.maxbytes", 64L * 1024 * 1024);
+	private final int auditFiles = Integer.getInteger("swiftdemo.audit.files", 5);
+	private AuditLog audit = null;
+
+	// Directory for the journals of balance changes, null for no journal, the
+	// size of each journal segment file and the most time between syncs. Only
+	// the senders and batch receivers wait for their changes to be synced, the
+	// other receive modes can lose their last deposits in a crash.
+	private final String journalDir = System.getProperty("swiftdemo.journal.dir");
+	private final int journalSegment = Integer.getInteger("swiftdemo.journal.segment", 64 * 1024 * 1024);
+	private final long journalSyncMillis = Long.getLong("swiftdemo.journal.syncms", 5);
+
+	// File the banks are saved to and restored from, null for none, and the
+	// seconds between snapshots while running, 0 to only save at the end.
+	private final String snapshotFile = System.getProperty("swiftdemo.snapshot.file");
+	private final long snapshotInterval = Long.getLong("swiftdemo.snapshot.interval", 0);
+
+	// File the banks are read from, null for the 3 built in banks, how many
+	// banks are built at once, and the most accounts printed for each bank.
+	private final String configFile = System.getProperty("swiftdemo.config");
+	private final int configParallelism = Integer.getInteger("swiftdemo.config.parallelism",
+			Runtime.getRuntime().availableProcessors());
+	private final int printAccounts = Integer.getInteger("swiftdemo.print.accounts", 20);
+
+	// Master seed for every random choice, so a run can be repeated. A new seed
+	// is picked each run if not set.
+	private final WorkloadRandom workload = System.getProperty("swiftdemo.seed") == null ? new WorkloadRandom()
+			: new WorkloadRandom(Long.getLong("swiftdemo.seed"));
+
+	// Every connection made so they can be closed at shutdown.
+	private ArrayList<MessageTransport> connections = new ArrayList<MessageTransport>();
+
 	public static void main(String[] args) {
 		Main m = new Main();
 		try {
@@ -38,22 +129,41 @@ public class Main {
 
 	/**
 	 * Main execution function. This function will do the following:
-	 * 1. Create 3 banks with 4 accounts each.
+	 * 1. Create 3 banks with 4 accounts each, or restore the banks from the
+	 * snapshot file if "swiftdemo.snapshot.file" is set and it exists, or
+	 * create the banks in the "swiftdemo.config" file.
 	 * 2. Create the MoneyReceivers objects for each bank.
-	 * 3. Create the MoneySender objects for each bank.
+	 * 3. Create the MoneySender objects for each bank. The banks, MoneyReceivers
+	 * and MoneySenders are shown through JMX.
 	 * 4. Register each bank with eachother.
-	 * 5. Print a summary of all the banks.
-	 * 6. Start all of the MoneyReceivers and MoneySender threads.
+	 * 5. Print a summary of all the banks, with at most
+	 * "swiftdemo.print.accounts" accounts each.
+	 * 6. Start all of the MoneyReceivers and MoneySender threads, on platform
+	 * threads or on virtual threads if "swiftdemo.threads=virtual" is set.
 	 * 7. Pause waiting for a enter key to signal a stop.
-	 * 8. Request all threads started end gracefully.
-	 * 9. Wait until all threads have ended.
-	 * 10. Print a summary of all the banks.
+	 * 8. Stop the MoneySenders, wait up to "swiftdemo.drain.ms" for the payments
+	 * already sent to be deposited and then stop the MoneyReceivers, see
+	 * HandlerLifecycle.
+	 * 9. Wait up to "swiftdemo.stop.ms" for the threads to end and print how long
+	 * each took and the payments still in flight.
+	 * 10. Close all of the connections.
+	 * 11. Save the banks to the snapshot file, if there is one. The journal
+	 * positions are only saved if every thread ended.
+	 * 12. Print a summary of all the banks and close them.
 	 * 
-	 * This functionality uses harcoded values for the queue manager, queues and
-	 * bank names. In the future these should be changed to be read from a
-	 * configuration file.
+	 * Every random choice is made from the "swiftdemo.seed" system property, so
+	 * runs with the same seed create the same banks and accounts, and each
+	 * sender picks the same sending and receiving accounts in the same order.
+	 * The amounts are a fraction of the balance at the time, which deposits
+	 * from other banks change, and a congested bank's payments are rerouted,
+	 * so those follow the timing of the run.
+	 * 
+	 * This functionality uses harcoded values for the queue manager. The banks
+	 * and queues are hardcoded unless read from a configuration file, see
+	 * BankConfig.
 	 * The program assumes a queue manager locally called "QM1" with a channel of
-	 * "IN" and port of "1414".
+	 * "IN" and port of "1414". Setting the system property
+	 * "swiftdemo.transport=memory" runs the same queues in process instead.
 	 * The program creates 3 banks connecting to the queues:
 	 * - BankOfRob -> BANKROB.Q
 	 * - BankOfGraham -> BANKGRA.Q
@@ -63,41 +173,51 @@ public class Main {
 	 */
 	public void go() throws Exception {
 		ArrayList<Bank> banks = new ArrayList<Bank>();
-		ArrayList<MoneyHandlers> threadsToMonitor = new ArrayList<MoneyHandlers>();
-		// first bank
-		Bank b1 = new Bank("BankOfRob", "BANKROBE", Currency.GBP, "BANKROB.Q");
-		b1.openAccount("Rob Parker");
-		b1.openAccount("Jimbo Blooms");
-		b1.openAccount("Dwayne Johnson");
-		b1.openAccount("Richard Liesen");
-		banks.add(b1);
-
-		// second bank
-		Bank b2 = new Bank("BankOfGraham", "BANKGRAH", Currency.GBP, "BANKGRA.Q");
-		b2.openAccount("Harry Houdini");
-		b2.openAccount("Margret Allens");
-		b2.openAccount("Alice Baker");
-		b2.openAccount("Sherlock Holmes");
-		banks.add(b2);
-
-		// third bank
-		Bank b3 = new Bank("BankOfNick", "BANKNICK", Currency.GBP, "BANKNICK.Q");
-		b3.openAccount("David Ware");
-		b3.openAccount("Amanda Maidstone");
-		b3.openAccount("Paul Norfolk");
-		b3.openAccount("Charlie Chesire");
-		banks.add(b3);
+		HandlerLifecycle handlers = new HandlerLifecycle();
+		audit = new AuditLog(auditCapacity, AuditLog.Policy.parse(auditPolicy),
+				auditFile == null ? null : Paths.get(auditFile), auditMaxBytes, auditFiles);
+		audit.start();
+		System.out.println("Workload seed " + workload.getSeed());
+		if (snapshotFile != null && Files.exists(Paths.get(snapshotFile))) {
+			banks = Snapshot.restore(Paths.get(snapshotFile), this::createStore, workload);
+			for (Bank b : banks) {
+				openJournal(b, null);
+			}
+		} else if (configFile != null) {
+			banks = createBanksFromConfig(Paths.get(configFile));
+		} else {
+			// first bank
+			banks.add(createBank("BankOfRob", "BANKROBE", Currency.GBP, "BANKROB.Q", "Rob Parker", "Jimbo Blooms",
+					"Dwayne Johnson", "Richard Liesen"));
+
+			// second bank
+			banks.add(createBank("BankOfGraham", "BANKGRAH", Currency.GBP, "BANKGRA.Q", "Harry Houdini",
+					"Margret Allens", "Alice Baker", "Sherlock Holmes"));
+
+			// third bank
+			banks.add(createBank("BankOfNick", "BANKNICK", Currency.GBP, "BANKNICK.Q", "David Ware",
+					"Amanda Maidstone", "Paul Norfolk", "Charlie Chesire"));
+		}
+		Snapshot snapshot = snapshotFile == null ? null : new Snapshot(Paths.get(snapshotFile), banks);
 
 		// Create the receivers for each bank
 		for (Bank b : banks) {
-			threadsToMonitor.add(createReceiverForBank(b));
+			b.setFlowControl(flowHigh, flowLow);
+			HandlerMetrics.register(b, "Bank", b.getSWIFTName());
+			MoneyReceiver mr = createReceiverForBank(b);
+			HandlerMetrics.register(mr.getMetrics(), "MoneyReceiver", b.getSWIFTName());
+			handlers.addReceiver(mr, b);
 		}
 
 		// Create the senders for each bank
 		for (int i = 0; i < banks.size(); i++) {
-			MQI m = new MQI("QM1", "localhost", 1414, "IN");
-			m.createConnection();
-			MoneySender ms = new MoneySender(m, banks.get(i));
+			MessageTransport m = createTransport(true, false);
+			MoneySender ms = new MoneySender(m, banks.get(i),
+					workload.forStream("sender " + banks.get(i).getSWIFTName()));
+			ms.setBytesMode(bytesWire);
+			ms.setLoad(loadTps, loadBurst);
+			ms.setReroute(flowReroute);
+			HandlerMetrics.register(ms.getMetrics(), "MoneySender", banks.get(i).getSWIFTName());
 			for (int i2 = 0; i2 < banks.size(); i2++) {
 				if (i2 == i) { // Don't add ourselves
 					continue;
@@ -105,19 +225,20 @@ public class Main {
 				ms.addOtherBank(banks.get(i2));
 			}
 
-			threadsToMonitor.add(ms);
+			handlers.addSender(ms, banks.get(i));
 		}
 
 		// debug
 		for (Bank b : banks) {
-			b.printMe();
+			b.printMe(printAccounts);
 		}
 
 		// ok we are ready. Start all the threads!
-		System.out.println("Starting all threads");
-		for (MoneyHandlers mh : threadsToMonitor) {
-			Thread t = new Thread(mh);
-			t.start();
+		System.out.println("Starting all threads on " + threadMode + " threads");
+		handlers.start(ThreadMode.parse(threadMode).newExecutor());
+		latency.startReporting(latencyInterval);
+		if (snapshot != null) {
+			snapshot.start(snapshotInterval);
 		}
 
 		// Now we wait until enter key pressed.
@@ -129,22 +250,132 @@ public class Main {
 		scanner.close();
 
 		System.out.println("Ending all threads");
-		for (MoneyHandlers mh : threadsToMonitor) {
-			mh.signalStop();
+		if (snapshot != null) {
+			snapshot.stop();
+		}
+		boolean stopped = handlers.stop(drainMillis, stopMillis);
+		if (stopped) {
+			System.out.println("All threads closed. Stopping.");
+		} else {
+			System.err.println("Threads did not end in time.");
+		}
+		handlers.printStats();
+		latency.stopReporting();
+		latency.printStats();
+		audit.close();
+		for (MessageTransport m : connections) {
+			m.printStats();
+			m.closeConnection();
 		}
-		for (MoneyHandlers mh : threadsToMonitor) {
-			while (mh.isActive())
-				;
+		if (snapshot != null) {
+			// Threads still running may be changing the balances, so the journal
+			// positions are only saved if they all ended
+			snapshot.write(stopped);
 		}
-		System.out.println("All threads closed. Stopping.");
 		System.out.println("Final stats");
 		for (Bank b : banks) {
-			b.printMe();
+			b.printMe(printAccounts);
+			b.close();
+		}
+	}
+
+	/**
+	 * Creates a bank and opens an account for each of the given holders. If the
+	 * "swiftdemo.ledger.dir" system property is set the accounts are kept in a
+	 * memory mapped ledger file in that directory named after the bank's SWIFT
+	 * name. A ledger that already holds accounts from an earlier run is used as it
+	 * is and no new accounts are opened. If the "swiftdemo.journal.dir" system
+	 * property is set every balance change is journaled there, and the accounts
+	 * and balances are first replayed from any journal left by an earlier run.
+	 * Accounts after the named holders are given the names generated ones get by
+	 * default, see BankConfig.
+	 * 
+	 * @param name      Name of bank
+	 * @param swiftname the SWIFT name of the bank.
+	 * @param cur       The currency of the bank.
+	 * @param qname     The queue the bank will monitor.
+	 * @param holders   The names of the account holders.
+	 * @return The bank.
+	 * @throws Exception
+	 */
+	private Bank createBank(String name, String swiftname, Currency cur, String qname, String... holders)
+			throws Exception {
+		Bank b = new Bank(name, swiftname, cur, qname, createStore(swiftname), workload.forStream("bank " + swiftname));
+		openJournal(b, i -> i < holders.length ? holders[i] : "Customer " + (i - holders.length + 1));
+		if (b.getAccountCount() == 0) {
+			for (String holder : holders) {
+				b.openAccount(holder);
+			}
 		}
+		return b;
 	}
 
 	/**
-	 * Creates a MQI object for a bank and then creates a MoneyReceiver for that
+	 * Creates the account store for a bank, a memory mapped ledger file named
+	 * after the bank's SWIFT name if the "swiftdemo.ledger.dir" system property
+	 * is set, otherwise on the heap.
+	 * 
+	 * @param swiftname the SWIFT name of the bank.
+	 * @return The store.
+	 * @throws Exception
+	 */
+	private AccountStore createStore(String swiftname) throws Exception {
+		if (ledgerDir != null) {
+			return new MappedAccountStore(Paths.get(ledgerDir, swiftname + ".ledger"), ledgerCapacity);
+		}
+		return new HeapAccountStore();
+	}
+
+	/**
+	 * Journals a bank's balance changes if the "swiftdemo.journal.dir" system
+	 * property is set, first replaying any journal left by an earlier run.
+	 * 
+	 * @param b     The bank.
+	 * @param names Names the accounts opened again from the journal if the bank
+	 *              has none, see Bank.setJournal.
+	 * @throws Exception
+	 */
+	private void openJournal(Bank b, IntFunction<String> names) throws Exception {
+		if (journalDir != null) {
+			b.setJournal(new Journal(Paths.get(journalDir), b.getSWIFTName(), journalSegment, journalSyncMillis),
+					names);
+		}
+	}
+
+	/**
+	 * Creates and connects the transport selected by the "swiftdemo.transport"
+	 * system property. By default this is an MQI object connecting to the local
+	 * queue manager, "memory" uses an in process queue manager instead.
+	 * 
+	 * @param forSender  True if the transport will be used by a MoneySender.
+	 * @param transacted True if receives should be under a unit of work.
+	 * @return The connected transport.
+	 * @throws Exception
+	 */
+	private MessageTransport createTransport(boolean forSender, boolean transacted) throws Exception {
+		MessageTransport m;
+		if (transportType.equalsIgnoreCase("memory")) {
+			if (memoryQmgr == null) {
+				memoryQmgr = new InMemoryQueueManager(memoryQueueDepth);
+			}
+			m = new InMemoryTransport(memoryQmgr);
+		} else if (transportType.equalsIgnoreCase("mq")) {
+			MQI mqi = new MQI("QM1", "localhost", 1414, "IN");
+			if (forSender) {
+				mqi.setSendBatching(sendBatch, sendBatchMillis);
+			}
+			mqi.setReceiveTransacted(transacted);
+			m = mqi;
+		} else {
+			throw new Exception("Unknown transport " + transportType);
+		}
+		m.createConnection();
+		connections.add(m);
+		return m;
+	}
+
+	/**
+	 * Creates a transport for a bank and then creates a MoneyReceiver for that
 	 * bank.
 	 * 
 	 * @param b Bank to create the MoneyReceiver object for.
@@ -152,14 +383,26 @@ public class Main {
 	 * @throws Exception
 	 */
 	private MoneyReceiver createReceiverForBank(Bank b) throws Exception {
-		MQI m = new MQI("QM1", "localhost", 1414, "IN");
-		m.createConnection();
-		MoneyReceiver mr = new MoneyReceiver(m, b);
+		ReceiveMode mode = ReceiveMode.parse(receiveMode);
+		MessageTransport m = createTransport(false, mode == ReceiveMode.BATCH);
+		MoneyReceiver mr = new MoneyReceiver(m, b, mode);
+		mr.setBatchSize(receiveBatch);
+		mr.setLanes(receiveLanes, receiveLaneDepth);
+		mr.setLatencyTracker(latency);
+		mr.setAuditLog(audit);
+		mr.setBytesMode(bytesWire);
 		return mr;
 	}
 
-	private Bank createBankFromConfig() {
-		// TODO banks from a config file instead of hardcoded
-		return null;
+	/**
+	 * Creates the banks described in a configuration file, building them in
+	 * parallel with "swiftdemo.config.parallelism" threads.
+	 * 
+	 * @param file The configuration file.
+	 * @return The banks.
+	 * @throws Exception
+	 */
+	private ArrayList<Bank> createBanksFromConfig(Path file) throws Exception {
+		return BankConfig.load(file).build(configParallelism, this::createBank);
 	}
 }
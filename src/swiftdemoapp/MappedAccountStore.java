@@ -0,0 +1,382 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Holds a Bank's accounts off the Java heap in a memory mapped file of fixed
+ * size records, so banks with millions of accounts fit in a small heap. Each
+ * record holds the packed account number, a reference to the holder's name
+ * and the balance. Balances are updated in place with atomic operations on the
+ * mapped memory, so they are kept if the program is restarted with the same
+ * file.
+ * 
+ * Names are appended to a second file next to the ledger, "<ledger>.names",
+ * and the name reference is the name's position in that file.
+ * 
+ * The account index is rebuilt in memory when a ledger is opened. It holds one
+ * int per bucket, the account numbers are compared in the mapped records. The
+ * Account objects returned are small views of a record created on each call.
+ * The account number and holder name are only read from the ledger when asked
+ * for, so finding an account and changing its balance do not touch the names
+ * file. Each name is read from the names file at most once and then kept in
+ * memory, as a sender asks for one with every payment.
+ */
+public class MappedAccountStore implements AccountStore {
+	private static final int MAGIC = 0x4C444752; // LDGR
+	private static final int VERSION = 1;
+
+	// Header layout
+	private static final int HEADER_SIZE = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int RECORD_SIZE_OFFSET = 8;
+	private static final int CAPACITY_OFFSET = 12;
+	private static final int COUNT_OFFSET = 16;
+
+	// Record layout. The balance is 8 byte aligned for the atomic operations.
+	private static final int RECORD_SIZE = 32;
+	private static final int LOW_OFFSET = 0;
+	private static final int HIGH_OFFSET = 8;
+	private static final int NAME_OFFSET = 12;
+	private static final int BALANCE_OFFSET = 16;
+
+	/**
+	 * The most accounts a ledger can hold, limited by the size of one mapping.
+	 */
+	public static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+
+	private final FileChannel ledger;
+	private final MappedByteBuffer records;
+	private final FileChannel names;
+	private long namesEnd;
+	private final int capacity;
+	private volatile int count;
+
+	// Position + 1 of the account in each bucket, 0 marks an empty bucket. Sized
+	// from the accounts stored, not the capacity, and replaced by a table twice
+	// the size when it is 2/3 full, so readers always see a complete table.
+	private volatile int[] buckets;
+	// The names read so far by position, null for one not read yet. Replaced by
+	// a larger copy as accounts are added. Readers fill it in without locking,
+	// a name lost to a race is only read again.
+	private volatile String[] nameCache;
+
+	/**
+	 * Opens the ledger in the given file, creating it with room for the given
+	 * number of accounts if it does not exist. An existing ledger keeps the
+	 * capacity it was created with.
+	 * 
+	 * @param file     The ledger file.
+	 * @param capacity The most accounts a new ledger can hold.
+	 * @throws Exception If the file is not a ledger or cannot be opened.
+	 */
+	public MappedAccountStore(Path file, int capacity) throws Exception {
+		ledger = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		names = FileChannel.open(Paths.get(file.toString() + ".names"), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			boolean exists = ledger.size() > 0;
+			if (exists) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+				ledger.read(header, 0);
+				if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION
+						|| header.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+					throw new Exception(file + " is not a ledger or was written on a different platform.");
+				}
+				capacity = header.getInt(CAPACITY_OFFSET);
+			}
+			if (capacity < 1 || capacity > MAX_CAPACITY) {
+				throw new Exception("Ledger capacity must be between 1 and " + MAX_CAPACITY);
+			}
+			this.capacity = capacity;
+			records = ledger.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+			records.order(ByteOrder.nativeOrder());
+			if (!exists) {
+				records.putInt(MAGIC_OFFSET, MAGIC);
+				records.putInt(VERSION_OFFSET, VERSION);
+				records.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+				records.putInt(CAPACITY_OFFSET, capacity);
+				LONGS.setVolatile(records, COUNT_OFFSET, 0L);
+			}
+			namesEnd = names.size();
+
+			int stored = (int) (long) LONGS.getVolatile(records, COUNT_OFFSET);
+			int[] table = new int[tableSize(stored)];
+			for (int i = 0; i < stored; i++) {
+				insert(table, i);
+			}
+			buckets = table;
+			nameCache = new String[Math.max(stored, 16)];
+			count = stored;
+		} catch (Exception e) {
+			ledger.close();
+			names.close();
+			throw e;
+		}
+	}
+
+	private static int recordOffset(int position) {
+		return HEADER_SIZE + position * RECORD_SIZE;
+	}
+
+	private static int hash(int high, long low) {
+		long h = low * 0x9E3779B97F4A7C15L + high;
+		h ^= h >>> 32;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 29));
+	}
+
+	/**
+	 * Returns the number of buckets that keeps the given number of accounts no
+	 * more than 2/3 full, a power of 2 of at least 16.
+	 */
+	private static int tableSize(int accounts) {
+		long wanted = Math.max(accounts + accounts / 2 + 1L, 16);
+		return (int) Math.min(Long.highestOneBit(wanted - 1) << 1, 1 << 30);
+	}
+
+	private void insert(int[] table, int position) {
+		int mask = table.length - 1;
+		int offset = recordOffset(position);
+		int i = hash(records.getInt(offset + HIGH_OFFSET), records.getLong(offset + LOW_OFFSET)) & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = position + 1;
+	}
+
+	/**
+	 * Writes a new record to the end of the ledger. Only one thread may add at a
+	 * time.
+	 */
+	@Override
+	public synchronized Account add(String name, String number, int startingBalance) throws Exception {
+		int high = AccountIndex.packHigh(number, 0, number.length());
+		long low = AccountIndex.packLow(number, 0, number.length());
+		if (high < 0 || low < 0) {
+			throw new Exception("Account number must be " + AccountIndex.ACCOUNT_DIGITS + " digits.");
+		}
+		int position = count;
+		if (position >= capacity) {
+			throw new Exception("Ledger full at " + capacity + " accounts.");
+		}
+		int nameRef = writeName(name);
+		int offset = recordOffset(position);
+		records.putLong(offset + LOW_OFFSET, low);
+		records.putInt(offset + HIGH_OFFSET, high);
+		records.putInt(offset + NAME_OFFSET, nameRef);
+		LONGS.setVolatile(records, offset + BALANCE_OFFSET, (long) startingBalance);
+		String[] cache = nameCache;
+		if (position >= cache.length) {
+			cache = Arrays.copyOf(cache, (position + 1) * 2);
+		}
+		cache[position] = name;
+		nameCache = cache;
+		int[] table = buckets;
+		if (table.length < tableSize(position + 1)) {
+			table = new int[tableSize((position + 1) * 2)];
+			for (int i = 0; i < position; i++) {
+				insert(table, i);
+			}
+			insert(table, position);
+			buckets = table;
+		} else {
+			insert(table, position);
+		}
+		// The record is complete before it is counted
+		LONGS.setVolatile(records, COUNT_OFFSET, (long) position + 1);
+		count = position + 1;
+		return new MappedAccount(position);
+	}
+
+	private int writeName(String name) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > Short.MAX_VALUE) {
+			throw new IOException("Name too long.");
+		}
+		if (namesEnd + 2 + bytes.length > Integer.MAX_VALUE) {
+			throw new IOException("Names file full.");
+		}
+		ByteBuffer entry = ByteBuffer.allocate(2 + bytes.length);
+		entry.putShort((short) bytes.length).put(bytes).flip();
+		int ref = (int) namesEnd;
+		while (entry.hasRemaining()) {
+			names.write(entry, namesEnd + entry.position());
+		}
+		namesEnd += 2 + bytes.length;
+		return ref;
+	}
+
+	/**
+	 * Returns the name of the account at the given position, from the cache if
+	 * it has been read before.
+	 */
+	private String getName(int position) {
+		String[] cache = nameCache;
+		String name = position < cache.length ? cache[position] : null;
+		if (name == null) {
+			name = readName(records.getInt(recordOffset(position) + NAME_OFFSET));
+			if (position < cache.length) {
+				cache[position] = name;
+			}
+		}
+		return name;
+	}
+
+	private String readName(int ref) {
+		try {
+			ByteBuffer length = ByteBuffer.allocate(2);
+			readFully(length, ref);
+			ByteBuffer bytes = ByteBuffer.allocate(length.getShort(0));
+			readFully(bytes, ref + 2L);
+			return new String(bytes.array(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read account name.", e);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (names.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Names file truncated.");
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public Account get(int position) {
+		if (position < 0 || position >= count) {
+			throw new IndexOutOfBoundsException(position);
+		}
+		return new MappedAccount(position);
+	}
+
+	@Override
+	public Account find(int high, long low) {
+		if (high < 0 || low < 0) {
+			return null;
+		}
+		int[] table = buckets;
+		int mask = table.length - 1;
+		int i = hash(high, low) & mask;
+		int p;
+		while ((p = table[i]) != 0) {
+			int offset = recordOffset(p - 1);
+			if (records.getLong(offset + LOW_OFFSET) == low && records.getInt(offset + HIGH_OFFSET) == high) {
+				return new MappedAccount(p - 1);
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the most accounts this ledger can hold.
+	 * 
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Flushes the mapped records and the names to disk.
+	 */
+	public void sync() {
+		records.force();
+		try {
+			names.force(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void close() {
+		sync();
+		try {
+			ledger.close();
+			names.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * An Account that is a view of a ledger record. The balance is the balance
+	 * field of the record, the number is read from the ledger on each call and
+	 * the name from the store's cache.
+	 */
+	private final class MappedAccount extends Account {
+		private final int position;
+		private final int offset;
+
+		private MappedAccount(int position) {
+			this.position = position;
+			offset = recordOffset(position);
+		}
+
+		@Override
+		public String getName() {
+			return MappedAccountStore.this.getName(position);
+		}
+
+		@Override
+		public String getNumber() {
+			return AccountIndex.unpack(records.getInt(offset + HIGH_OFFSET), records.getLong(offset + LOW_OFFSET));
+		}
+
+		@Override
+		protected long loadBalance() {
+			return (long) LONGS.getVolatile(records, offset + BALANCE_OFFSET);
+		}
+
+		@Override
+		protected boolean compareAndSetBalance(long expected, long update) {
+			return LONGS.compareAndSet(records, offset + BALANCE_OFFSET, expected, update);
+		}
+
+		@Override
+		protected void addToBalance(long delta) {
+			LONGS.getAndAdd(records, offset + BALANCE_OFFSET, delta);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * Interface for the transports the MoneySender and MoneyReceiver use to pass
+ * SWIFT messages between banks. Each bank queue is identified by its name, for
+ * example "BANKROB.Q".
+ */
+public interface MessageTransport {
+	/**
+	 * Connects the transport so messages can be sent and received.
+	 * 
+	 * @throws Exception
+	 */
+	public void createConnection() throws Exception;
+
+	/**
+	 * Sends the given message to the given queue.
+	 * 
+	 * @param destinationQ The queue to send the message to.
+	 * @param message      The message.
+	 * @throws Exception
+	 */
+	public void sendMessage(String destinationQ, String message) throws Exception;
+
+	/**
+	 * Sends the given ASCII bytes to the given queue as a bytes message, without
+	 * turning them into a String. The bytes may be reused once this returns.
+	 * 
+	 * @param destinationQ The queue to send the message to.
+	 * @param message      Buffer holding the message.
+	 * @param offset       Where the message starts in the buffer.
+	 * @param length       The length of the message.
+	 * @throws Exception
+	 */
+	public void sendMessage(String destinationQ, byte[] message, int offset, int length) throws Exception;
+
+	/**
+	 * Commits any sends the transport is holding back to batch them together.
+	 * 
+	 * @throws Exception
+	 */
+	public void flushSends() throws Exception;
+
+	/**
+	 * Called by a sender that is about to be idle for the given time. Commits any
+	 * batched sends that would otherwise be held past their batch time.
+	 * 
+	 * @param idleMillis How long the sender is about to be idle for.
+	 * @throws Exception
+	 */
+	public void flushSendsIfDue(long idleMillis) throws Exception;
+
+	/**
+	 * Sets the barrier passed before the messages sent can be seen on their
+	 * queues, see SendBarrier. Only the sending thread may use the transport
+	 * while a barrier is set.
+	 * 
+	 * @param barrier The barrier or null for none.
+	 */
+	public void setSendBarrier(SendBarrier barrier);
+
+	/**
+	 * Returns the number of messages sent that are held back in a batch not yet
+	 * committed. If the batch fails to commit they are all rolled back and the
+	 * send or flush that tried to commit it throws a SendsRolledBackException.
+	 * 
+	 * @return Uncommitted sends, 0 if sends are not batched.
+	 */
+	public int getUncommittedSends();
+
+	/**
+	 * Recieves a message from the given queue waiting a short time for one to
+	 * arrive.
+	 * 
+	 * @param queue The queue to consume a message from.
+	 * @return The received message or "";
+	 * @throws Exception
+	 */
+	public String receiveMessage(String queue) throws Exception;
+
+	/**
+	 * Recieves a message from the given queue into the given buffer, waiting a
+	 * short time for one to arrive. Text messages are converted to ASCII bytes.
+	 * 
+	 * @param queue  The queue to consume a message from.
+	 * @param buffer Where to put the message.
+	 * @return The length of the message or 0 if none arrived.
+	 * @throws Exception If the message is larger than the buffer.
+	 */
+	public int receiveMessage(String queue, byte[] buffer) throws Exception;
+
+	/**
+	 * Recieves up to max messages from the given queue as one unit of work,
+	 * waiting a short time for the first to arrive. Each message is passed to
+	 * the listener on the calling thread, as bytes if it was sent as bytes. The
+	 * messages are not removed for good until commit is called, rollback makes
+	 * them available again.
+	 * 
+	 * @param queue    The queue to consume messages from.
+	 * @param max      The most messages to receive.
+	 * @param listener The listener to pass each message to.
+	 * @return The number of messages received.
+	 * @throws Exception
+	 */
+	public int receiveBatch(String queue, int max, SwiftMessageListener listener) throws Exception;
+
+	/**
+	 * Commits the messages received since the last commit or rollback.
+	 * 
+	 * @throws Exception
+	 */
+	public void commit() throws Exception;
+
+	/**
+	 * Backs out the messages received since the last commit or rollback so they
+	 * can be received again.
+	 * 
+	 * @throws Exception
+	 */
+	public void rollback() throws Exception;
+
+	/**
+	 * Registers a listener that is given every message arriving on the given
+	 * queue, as bytes if it was sent as bytes. Messages are delivered on a
+	 * thread owned by the transport as soon as they arrive. Once a listener is
+	 * set receiveMessage must not be used for that queue. Passing a null
+	 * listener stops delivery.
+	 * 
+	 * @param queue    The queue to consume messages from.
+	 * @param listener The listener to deliver messages to, or null.
+	 * @throws Exception
+	 */
+	public void setMessageListener(String queue, SwiftMessageListener listener) throws Exception;
+
+	/**
+	 * Releases everything held by the transport.
+	 */
+	public void closeConnection();
+
+	/**
+	 * Prints a summary of how the transport has been used.
+	 */
+	public void printStats();
+
+	/**
+	 * Returns the number of queues currently held open for sending.
+	 * 
+	 * @return Open producer count.
+	 */
+	public int getOpenProducerCount();
+
+	/**
+	 * Returns the number of queues currently held open for receiving.
+	 * 
+	 * @return Open consumer count.
+	 */
+	public int getOpenConsumerCount();
+}
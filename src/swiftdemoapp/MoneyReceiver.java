@@ -18,33 +18,171 @@ limitations under the License.
 */
 package swiftdemoapp;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
 /**
  * This class handles simulating money being sent to a bank from another bank.
  */
-public class MoneyReceiver implements MoneyHandlers {
+public class MoneyReceiver implements MoneyHandlers, SwiftMessageListener {
 
-	private MQI mqi;
+	private MessageTransport mqi;
 	private Bank myBank;
+	private ReceiveMode mode;
+	private int failC = 0;
+	// Reused to parse each message, only touched by the thread receiving
+	private final SWIFTview view = new SWIFTview();
+	// Whether to poll for messages as bytes and the buffer to receive them into
+	private boolean bytesMode = false;
+	private final byte[] receiveBuffer = new byte[4096];
+
+	// BATCH mode: the most messages per unit of work and the deposits staged for
+	// the current batch. Messages whose deposits were applied in a batch that then
+	// failed to commit are remembered so they are not deposited twice when the
+	// queue gives them to us again. They are only remembered in memory, see
+	// batch.
+	private int batchSize = 50;
+	private final ArrayList<Account> batchAccounts = new ArrayList<Account>();
+	private final ArrayList<String> batchKeys = new ArrayList<String>();
+	private int[] batchAmounts = new int[batchSize];
+	private long[] batchSendTimes = new long[batchSize];
+	// Session and sequence number of each staged message, for the journal
+	private int[] batchSessions = new int[batchSize];
+	private int[] batchSeqs = new int[batchSize];
+	private final ArrayList<LatencyHistogram> batchHistograms = new ArrayList<LatencyHistogram>();
+	private final HashSet<String> appliedNotCommitted = new HashSet<String>();
+	// Summary of each message in the current batch, recorded once it commits so
+	// a batch given again after a rollback is not recorded twice
+	private byte[][] batchSummaries = new byte[batchSize][AuditLog.SLOT_SIZE];
+	private int[] batchSummaryLengths = new int[batchSize];
+	private int batchSummaryCount = 0;
+
+	// LANES mode: the number of deposit lanes and the most messages each can hold.
+	private int laneCount = 4;
+	private int laneDepth = 1024;
+	private DepositLanes lanes = null;
 
-	private boolean stop = false;
-	private boolean active = false;
+	// Where the time from send to deposit is recorded, null to not record it
+	private LatencyTracker latency = null;
+	// Where each payment's summary is recorded, null to print it straight away
+	private AuditLog audit = null;
+	private final HandlerMetrics metrics = new HandlerMetrics();
+
+	// Set and read by different threads
+	private volatile boolean stop = false;
+	private volatile boolean active = false;
 
 	/**
-	 * Creates a MoneyReceiver supplying a MQI object to use for communicating to MQ
-	 * and the Bank object that it is for.
+	 * Creates a MoneyReceiver supplying a MessageTransport to use for communicating
+	 * with the other banks and the Bank object that it is for.
 	 * 
-	 * @param mqi    The object to use for communicating with IBM MQ.
+	 * @param mqi    The transport to use, normally IBM MQ.
 	 * @param myBank The bank this MoneyReceiver will be operating on.
 	 * @throws Exception
 	 */
-	public MoneyReceiver(MQI mqi, Bank myBank) {
+	public MoneyReceiver(MessageTransport mqi, Bank myBank) {
+		this(mqi, myBank, ReceiveMode.POLL);
+	}
+
+	/**
+	 * Creates a MoneyReceiver that gets messages from its bank queue using the
+	 * given mode.
+	 * 
+	 * @param mqi    The transport to use, normally IBM MQ.
+	 * @param myBank The bank this MoneyReceiver will be operating on.
+	 * @param mode   How messages are taken from the bank queue.
+	 */
+	public MoneyReceiver(MessageTransport mqi, Bank myBank, ReceiveMode mode) {
 		this.mqi = mqi;
 		this.myBank = myBank;
+		this.mode = mode;
+	}
+
+	/**
+	 * Sets the most messages taken in each unit of work in BATCH mode.
+	 * 
+	 * @param batchSize Messages per batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			batchSize = 1;
+		}
+		this.batchSize = batchSize;
+		batchAmounts = new int[batchSize];
+		batchSendTimes = new long[batchSize];
+		batchSessions = new int[batchSize];
+		batchSeqs = new int[batchSize];
+		batchSummaries = new byte[batchSize][AuditLog.SLOT_SIZE];
+		batchSummaryLengths = new int[batchSize];
+	}
+
+	/**
+	 * Sets the number of deposit lanes and the most messages each lane can hold
+	 * waiting to be deposited in LANES mode.
+	 * 
+	 * @param laneCount Number of lanes.
+	 * @param laneDepth Messages each lane can hold.
+	 */
+	public void setLanes(int laneCount, int laneDepth) {
+		this.laneCount = laneCount;
+		this.laneDepth = laneDepth;
+	}
+
+	/**
+	 * Sets where the time each payment took from being sent to being deposited
+	 * is recorded.
+	 * 
+	 * @param latency The tracker or null to not record latency.
+	 */
+	public void setLatencyTracker(LatencyTracker latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets where the summary of each payment is recorded. With no audit log the
+	 * summary is printed to standard out as the payment is deposited.
+	 * 
+	 * @param audit The audit log or null.
+	 */
+	public void setAuditLog(AuditLog audit) {
+		this.audit = audit;
+	}
+
+	/**
+	 * Returns the counters for this receiver, to be shown through JMX.
+	 * 
+	 * @return The metrics.
+	 */
+	public HandlerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the deposit lanes in use in LANES mode, to see how deep each lane is.
+	 * 
+	 * @return The lanes or null if not running in LANES mode.
+	 */
+	public DepositLanes getLanes() {
+		return lanes;
+	}
+
+	/**
+	 * Sets whether POLL and LANES mode receive each message as bytes instead of
+	 * a String. Other modes are given messages in the form they were sent.
+	 * 
+	 * @param bytesMode True to receive bytes.
+	 */
+	public void setBytesMode(boolean bytesMode) {
+		this.bytesMode = bytesMode;
 	}
 
 	@Override
-	public void signalStop() {
+	public synchronized void signalStop() {
 		stop = true;
+		notifyAll();
 	}
 
 	/**
@@ -52,59 +190,435 @@ public class MoneyReceiver implements MoneyHandlers {
 	 * This loop will run until it is signalled to stop or encounters too many
 	 * errors.
 	 * 
-	 * In a loop it will:
-	 * 1. Consume a message from its bank queue. If no message arrives within a
-	 * timeout it will try again.
-	 * 2. Convert the given message into a SWIFTcoder object.
-	 * 3. Extract the receiving account number from the SWIFTcoder object and find
-	 * that account within the bank.
-	 * 4. Deposit the amount of money given to that account based off the SWIFT
-	 * message values.
+	 * In POLL mode it will in a loop consume a message from its bank queue. If no
+	 * message arrives within a timeout it will try again.
+	 * In ASYNC mode it registers itself as the listener for its bank queue and
+	 * waits until it is signalled to stop while the transport delivers messages.
+	 * In BATCH mode it will in a loop take up to batchSize messages in one unit of
+	 * work, deposit them all and then commit.
+	 * In LANES mode it will in a loop consume a message from its bank queue and
+	 * hand it to the deposit lane for the destination account. When stopped it
+	 * waits for the lanes to deposit every message they hold.
+	 * 
+	 * Each message is then deposited, see onMessage.
 	 */
 	@Override
 	public void run() {
-		int failC = 0;
 		active = true;
 		String q = myBank.getqName();
 		System.out.println("Receiving thread for bank " + myBank.getSWIFTName() + " now active.");
+		if (mode == ReceiveMode.ASYNC) {
+			listen(q);
+		} else if (mode == ReceiveMode.BATCH) {
+			batch(q);
+		} else if (mode == ReceiveMode.LANES) {
+			lanes(q);
+		} else {
+			poll(q);
+		}
+		active = false;
+		System.out.println("Receiving thread for bank " + myBank.getSWIFTName() + " now stopped.");
+	}
+
+	private void poll(String q) {
 		while (stop == false) {
 			try {
 				// We connect to and get a message
+				if (bytesMode) {
+					int length = mqi.receiveMessage(q, receiveBuffer);
+					if (length == 0) {
+						// no message in timeout so loop
+						continue;
+					}
+					deposit(parse(receiveBuffer, 0, length));
+					continue;
+				}
 				String swiftmessage = mqi.receiveMessage(q);
 				if (swiftmessage == null || swiftmessage.equals("")) {
 					// no message in timeout so loop
 					continue;
 				}
+				deposit(parse(swiftmessage));
+			} catch (Exception e) {
+				countFailure();
+				e.printStackTrace();
+				continue;
+			}
+		}
+	}
 
-				// We parse the message
-				SWIFTcoder c = new SWIFTcoder(swiftmessage);
-
-				c.summarize();
-
-				// We update the account
-				Account a = myBank.getAccountByAccountNumber(c.getDestAccount());
-				if (a == null) {
-					System.err.println("Failed to find account " + c.getDestAccount() + " in bank " + myBank.getName());
-					failC++;
-					if (failC > 4) {
-						System.err.println("Failed too many times. Quitting");
-						stop = true;
+	private void lanes(String q) {
+		DepositLanes l = new DepositLanes(myBank, laneCount, laneDepth);
+		l.setLatencyTracker(latency);
+		l.setMetrics(metrics);
+		l.setAuditLog(audit);
+		lanes = l;
+		l.start();
+		while (stop == false) {
+			try {
+				if (bytesMode) {
+					int length = mqi.receiveMessage(q, receiveBuffer);
+					if (length == 0) {
+						// no message in timeout so loop
+						continue;
 					}
+					// The lane needs its own copy as the buffer and view are reused
+					SWIFTview v = parse(receiveBuffer, 0, length);
+					l.dispatch(v.copy(Arrays.copyOf(receiveBuffer, length), 0, length));
 					continue;
 				}
-				a.addMoney(c.getAmmount());
-			} catch (Exception e) {
-				failC++;
-				if (failC > 4) {
-					System.err.println("Failed too many times. Quitting");
-					stop = true;
+				String swiftmessage = mqi.receiveMessage(q);
+				if (swiftmessage == null || swiftmessage.equals("")) {
+					// no message in timeout so loop
+					continue;
 				}
+				l.dispatch(parse(swiftmessage).copy(swiftmessage));
+			} catch (Exception e) {
+				countFailure();
 				e.printStackTrace();
 				continue;
 			}
 		}
-		active = false;
-		System.out.println("Receiving thread for bank " + myBank.getSWIFTName() + " now stopped.");
+		l.stop();
+		l.printStats();
+	}
+
+	/**
+	 * Receives, deposits and commits batches of messages until stopped.
+	 * 
+	 * A message is deposited at most once while this receiver runs, as messages
+	 * given back after a failed commit are remembered and skipped. That memory is
+	 * lost when the program stops, and the journal does not record which bank
+	 * sent each deposit so cannot be used to rebuild it. If the program stops
+	 * after a batch's credits are on disk but before the batch is committed, the
+	 * balances replayed from the journal include those deposits and the queue
+	 * gives the messages again, so they are deposited twice.
+	 */
+	private void batch(String q) {
+		while (stop == false) {
+			int count;
+			try {
+				count = mqi.receiveBatch(q, batchSize, this);
+			} catch (Exception e) {
+				countFailure();
+				e.printStackTrace();
+				rollbackBatch();
+				continue;
+			}
+			if (count == 0) {
+				// no message in timeout so loop
+				continue;
+			}
+			long journaled;
+			try {
+				journaled = applyBatch();
+			} catch (IOException e) {
+				// Nothing was deposited, the queue will give us the batch again
+				countFailure();
+				e.printStackTrace();
+				rollbackBatch();
+				continue;
+			}
+			try {
+				// The deposits must be in the journal on disk before the messages
+				// are removed from the queue.
+				myBank.awaitJournal(journaled);
+				mqi.commit();
+			} catch (Exception e) {
+				// The queue will give us these messages again but they are already
+				// deposited.
+				appliedNotCommitted.addAll(batchKeys);
+				countFailure();
+				e.printStackTrace();
+				rollbackBatch();
+				continue;
+			}
+			// Only now are the messages gone from the queue for good, whether they
+			// were deposited or not
+			myBank.paymentsArrived(count);
+			recordSummaries();
+			batchAccounts.clear();
+			batchKeys.clear();
+			batchHistograms.clear();
+		}
+	}
+
+	/**
+	 * Records the summary of every message in the batch just committed.
+	 */
+	private void recordSummaries() {
+		for (int i = 0; i < batchSummaryCount; i++) {
+			if (audit != null) {
+				audit.record(batchSummaries[i], batchSummaryLengths[i]);
+			} else {
+				System.out.println(new String(batchSummaries[i], 0, batchSummaryLengths[i], StandardCharsets.US_ASCII));
+			}
+		}
+		batchSummaryCount = 0;
+	}
+
+	/**
+	 * Finds the account to deposit a message received in BATCH mode into, holding
+	 * both until the whole batch has been received.
+	 * 
+	 * @param v View of the SWIFT MT103 message.
+	 * @throws Exception
+	 */
+	private void stage(SWIFTview v) throws Exception {
+		batchSummaryLengths[batchSummaryCount] = v.summarize(batchSummaries[batchSummaryCount], 0);
+		batchSummaryCount++;
+
+		Account a = myBank.getAccountByAccountNumber(v.getDestAccountHigh(), v.getDestAccountLow());
+		if (a == null) {
+			System.err.println("Failed to find account " + v.getDestAccount() + " in bank " + myBank.getName());
+			metrics.unknownAccountFailures.increment();
+			countFailure();
+			return;
+		}
+		batchAmounts[batchAccounts.size()] = v.getAmmount();
+		batchSessions[batchAccounts.size()] = v.getSessionNumber();
+		batchSeqs[batchAccounts.size()] = v.getSeqNumber();
+		if (latency != null) {
+			batchSendTimes[batchAccounts.size()] = v.getSendTime();
+			batchHistograms.add(latency.getHistogram(v, myBank.getSWIFTName()));
+		}
+		batchAccounts.add(a);
+		batchKeys.add(messageKey(v));
+	}
+
+	/**
+	 * Deposits every message staged for the current batch, skipping any that were
+	 * already deposited by a batch that failed to commit. Every deposit is
+	 * journaled before any is made. If one cannot be journaled a debit is
+	 * journaled to cancel each credit already journaled for the batch, nothing is
+	 * deposited and the batch must be rolled back.
+	 * 
+	 * @return The position of the last deposit in the bank's journal.
+	 * @throws IOException If the batch could not be journaled.
+	 */
+	private long applyBatch() throws IOException {
+		long journaled = 0;
+		int i = 0;
+		try {
+			for (; i < batchAccounts.size(); i++) {
+				if (!appliedNotCommitted.contains(batchKeys.get(i))) {
+					journaled = myBank.journal(batchAccounts.get(i), Journal.CREDIT, batchAmounts[i], batchSessions[i],
+							batchSeqs[i]);
+				}
+			}
+		} catch (IOException e) {
+			for (int j = 0; j < i; j++) {
+				if (!appliedNotCommitted.contains(batchKeys.get(j))) {
+					myBank.journal(batchAccounts.get(j), Journal.DEBIT, batchAmounts[j], batchSessions[j],
+							batchSeqs[j]);
+				}
+			}
+			throw e;
+		}
+		for (i = 0; i < batchAccounts.size(); i++) {
+			if (!appliedNotCommitted.isEmpty() && appliedNotCommitted.remove(batchKeys.get(i))) {
+				continue;
+			}
+			batchAccounts.get(i).addMoney(batchAmounts[i]);
+			metrics.deposits.increment();
+			if (latency != null && batchHistograms.get(i) != null) {
+				batchHistograms.get(i).record(LatencyHistogram.nowMicros() - batchSendTimes[i]);
+			}
+		}
+		return journaled;
+	}
+
+	private void rollbackBatch() {
+		batchSummaryCount = 0;
+		batchAccounts.clear();
+		batchKeys.clear();
+		batchHistograms.clear();
+		try {
+			mqi.rollback();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns a key unique to each message sent, made from the sending bank,
+	 * session and sequence number.
+	 */
+	private static String messageKey(SWIFTview v) {
+		return v.getSendBank() + v.getSession() + v.getSeq();
+	}
+
+	private void listen(String q) {
+		try {
+			mqi.setMessageListener(q, this);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		synchronized (this) {
+			while (stop == false) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					break;
+				}
+			}
+		}
+		try {
+			mqi.setMessageListener(q, null);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles a message delivered by the transport. In ASYNC mode the money is
+	 * deposited straight away, in BATCH mode it is staged until the batch is
+	 * complete.
+	 * 
+	 * @param swiftmessage The SWIFT MT103 message.
+	 */
+	@Override
+	public void onMessage(String swiftmessage) {
+		try {
+			handle(parse(swiftmessage));
+		} catch (Exception e) {
+			countFailure();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles a message delivered by the transport as bytes, parsing it without
+	 * making a String of the message.
+	 * 
+	 * @param swiftmessage Buffer holding the SWIFT MT103 message.
+	 * @param offset       Where the message starts.
+	 * @param length       Length of the message.
+	 */
+	@Override
+	public void onMessage(byte[] swiftmessage, int offset, int length) {
+		try {
+			handle(parse(swiftmessage, offset, length));
+		} catch (Exception e) {
+			countFailure();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Counts a message received and points the view at it.
+	 * 
+	 * @param swiftmessage The SWIFT MT103 message.
+	 * @return The view of the message.
+	 * @throws Exception If the message is not a valid MT103 message.
+	 */
+	private SWIFTview parse(String swiftmessage) throws Exception {
+		metrics.messagesReceived.increment();
+		metrics.bytesReceived.add(swiftmessage.length());
+		try {
+			return view.wrap(swiftmessage);
+		} catch (Exception e) {
+			parseFailed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Counts a message received as bytes and points the view at it.
+	 * 
+	 * @param swiftmessage Buffer holding the SWIFT MT103 message.
+	 * @param offset       Where the message starts.
+	 * @param length       Length of the message.
+	 * @return The view of the message.
+	 * @throws Exception If the message is not a valid MT103 message.
+	 */
+	private SWIFTview parse(byte[] swiftmessage, int offset, int length) throws Exception {
+		metrics.messagesReceived.increment();
+		metrics.bytesReceived.add(length);
+		try {
+			return view.wrap(swiftmessage, offset, length);
+		} catch (Exception e) {
+			parseFailed();
+			throw e;
+		}
+	}
+
+	private void parseFailed() {
+		metrics.parseFailures.increment();
+		// A batch counts its messages as arrived once it commits, as a rollback
+		// gives them all back
+		if (mode != ReceiveMode.BATCH) {
+			myBank.paymentArrived();
+		}
+	}
+
+	private void handle(SWIFTview v) throws Exception {
+		if (mode == ReceiveMode.BATCH) {
+			stage(v);
+		} else {
+			deposit(v);
+		}
+	}
+
+	/**
+	 * Deposits the money from a SWIFT message. This will:
+	 * 1. Extract the receiving account number from the view of the message and
+	 * find that account within the bank.
+	 * 2. Deposit the amount of money given to that account based off the SWIFT
+	 * message values.
+	 * 3. Record how long the payment took from being sent, if it has a send time.
+	 * 
+	 * The deposit is journaled but not waited for, as the message has already
+	 * been taken from the queue. Only BATCH mode journals its deposits before the
+	 * messages are removed, so a crash in the other modes can lose the deposits
+	 * made since the journal was last synced.
+	 * 
+	 * @param v View of the SWIFT MT103 message.
+	 * @throws Exception
+	 */
+	private void deposit(SWIFTview v) throws Exception {
+		try {
+			summarize(v);
+
+			// We update the account
+			Account a = myBank.getAccountByAccountNumber(v.getDestAccountHigh(), v.getDestAccountLow());
+			if (a == null) {
+				System.err.println("Failed to find account " + v.getDestAccount() + " in bank " + myBank.getName());
+				metrics.unknownAccountFailures.increment();
+				countFailure();
+				return;
+			}
+			int amount = v.getAmmount();
+			a.addMoney(amount);
+			metrics.deposits.increment();
+			myBank.journal(v.getDestAccountHigh(), v.getDestAccountLow(), Journal.CREDIT, amount,
+					v.getSessionNumber(), v.getSeqNumber());
+			if (latency != null) {
+				latency.record(v, myBank.getSWIFTName());
+			}
+		} finally {
+			// The message has been taken from the queue however this ends
+			myBank.paymentArrived();
+		}
+	}
+
+	private void summarize(SWIFTview v) throws Exception {
+		if (audit != null) {
+			audit.record(v);
+		} else {
+			v.summarize();
+		}
+	}
+
+	private void countFailure() {
+		metrics.failures.increment();
+		failC++;
+		if (failC > 4) {
+			System.err.println("Failed too many times. Quitting");
+			signalStop();
+		}
 	}
 
 	@Override
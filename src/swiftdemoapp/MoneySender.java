@@ -18,8 +18,12 @@ limitations under the License.
 */
 package swiftdemoapp;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.random.RandomGenerator;
 
 /**
  * This class handles simulating money being sent from a bank to another bank.
@@ -28,28 +32,84 @@ public class MoneySender implements MoneyHandlers {
 
 	private static final int RATE_MIN = 2; // seconds
 	private static final int RATE_MAX = 7; // seconds
+	// How often load mode prints the rate achieved so far
+	private static final long LOAD_REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	// How often a throttled sender checks whether its destination has caught up
+	private static final long THROTTLE_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
 
-	private MQI mqi;
+	private MessageTransport mqi;
 	private Bank myBank;
 	private ArrayList<Bank> otherBanks;
 	private int sessionCode;
+	// Makes every random choice for this sender, only used by its thread
+	private final SplittableRandom random;
 
-	private boolean stop = false;
-	private boolean active = false;
+	// Whether to send messages as bytes and the buffer they are encoded into
+	private boolean bytesMode = false;
+	private byte[] sendBuffer = new byte[1024];
+
+	// Load mode: the payments per second to aim for, 0 for the normal random
+	// pauses, and how many payments may be sent together in one burst.
+	private double targetTps = 0;
+	private int burst = 1;
+	// Load mode schedule and statistics, only touched by the sending thread.
+	// Payments are due at fixed times from the start whether or not earlier
+	// sends were late, so lag is measured from when a payment was due.
+	private long loadStart;
+	private long scheduled = 0;
+	private long intendedSendTime;
+	private long sent = 0;
+	private long skipped = 0;
+	// Lag of every payment sent, including any that failed to send
+	private long totalLag = 0;
+	private long maxLag = 0;
+	private long nextReport;
+
+	// Whether a payment for a congested bank may be sent to another bank instead
+	// of waiting for it to catch up
+	private boolean reroute = true;
+
+	private final HandlerMetrics metrics = new HandlerMetrics();
+	private int failC = 0;
+	// Payments sent in a batch the transport has not committed yet, returned to
+	// their senders if the batch is rolled back. Only used by the sending thread.
+	private final ArrayList<Payment> uncommitted = new ArrayList<Payment>();
+	// Journal position of the last debit, which must be on disk before the
+	// transport lets any payment sent be seen. Only used by the sending thread.
+	private long lastDebit = 0;
+
+	// Set and read by different threads. The sending thread is woken from its
+	// pauses when signalled to stop.
+	private volatile boolean stop = false;
+	private volatile boolean active = false;
+	private volatile Thread thread = null;
 
 	/**
-	 * Creates a MoneySender supplying a MQI object to use for communicating to MQ
-	 * and the Bank object that it is for.
+	 * Creates a MoneySender supplying a MessageTransport to use for communicating
+	 * with the other banks and the Bank object that it is for.
 	 * 
-	 * @param mqi The object to use for communicating with IBM MQ.
+	 * @param mqi The transport to use, normally IBM MQ.
 	 * @param me  The bank this MoneySender will be operating on.
 	 * @throws Exception
 	 */
-	public MoneySender(MQI mqi, Bank me) throws Exception {
-		if (mqi == null || me == null) {
-			throw new Exception("Invalid parms. mqi or me null");
+	public MoneySender(MessageTransport mqi, Bank me) throws Exception {
+		this(mqi, me, new SplittableRandom());
+	}
+
+	/**
+	 * Creates a MoneySender that makes all of its random choices with the given
+	 * generator, so the same generator sends the same payments.
+	 * 
+	 * @param mqi    The transport to use, normally IBM MQ.
+	 * @param me     The bank this MoneySender will be operating on.
+	 * @param random The sender's generator, see WorkloadRandom.
+	 * @throws Exception
+	 */
+	public MoneySender(MessageTransport mqi, Bank me, SplittableRandom random) throws Exception {
+		if (mqi == null || me == null || random == null) {
+			throw new Exception("Invalid parms. mqi, me or random null");
 		}
-		Random random = new Random();
+		this.random = random;
 		this.mqi = mqi;
 		this.myBank = me;
 		otherBanks = new ArrayList<Bank>();
@@ -69,9 +129,59 @@ public class MoneySender implements MoneyHandlers {
 		otherBanks.add(b);
 	}
 
+	/**
+	 * Sets whether messages are encoded straight into a reused buffer and sent as
+	 * bytes instead of as a String.
+	 * 
+	 * @param bytesMode True to send bytes.
+	 */
+	public void setBytesMode(boolean bytesMode) {
+		this.bytesMode = bytesMode;
+	}
+
+	/**
+	 * Sets load mode, where payments are sent on a fixed schedule at the given
+	 * rate instead of with random pauses. A burst greater than 1 sends that many
+	 * payments together and then waits, keeping the same average rate.
+	 * 
+	 * @param targetTps Payments per second to send, 0 to use random pauses.
+	 * @param burst     Payments sent together in each burst.
+	 */
+	public void setLoad(double targetTps, int burst) {
+		if (burst < 1) {
+			burst = 1;
+		}
+		this.targetTps = targetTps;
+		this.burst = burst;
+	}
+
+	/**
+	 * Sets whether a payment picked for a congested bank is sent to another bank
+	 * that is not congested, instead of waiting for the first to catch up. See
+	 * Bank.setFlowControl.
+	 * 
+	 * @param reroute True to reroute.
+	 */
+	public void setReroute(boolean reroute) {
+		this.reroute = reroute;
+	}
+
+	/**
+	 * Returns the counters for this sender, to be shown through JMX.
+	 * 
+	 * @return The metrics.
+	 */
+	public HandlerMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public void signalStop() {
 		stop = true;
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
 	}
 
 	@Override
@@ -85,14 +195,24 @@ public class MoneySender implements MoneyHandlers {
 	 * errors.
 	 * 
 	 * In a loop it will:
-	 * 1. Select a random account from its bank to send money.
-	 * 2. Deduct a random amount of money from the acount to send. If the account
+	 * 1. Select a random bank to send money to. If that bank is congested it
+	 * selects another that is not, or waits for it to catch up, see
+	 * chooseDestination.
+	 * 2. Select a random account from its bank to send money.
+	 * 3. Deduct a random amount of money from the acount to send. If the account
 	 * has no money it will return to step 1.
-	 * 3. Select a random bank to send money to.
 	 * 4. Select a random account to recieve the money.
 	 * 5. Generate a SWIFTcoder object with the appropriate details.
 	 * 6. Send the SWIFT MT103 message generated from the SWIFTcoder object to the
-	 * queue for the bank selected in step 3.
+	 * queue for the bank selected in step 1.
+	 * 
+	 * In load mode it waits until the next payment is due before step 1 instead
+	 * of pausing after step 6, and a payment due while the account has no money
+	 * is skipped.
+	 * 
+	 * Each payment makes its choices with a generator split from the sender's,
+	 * so whatever a payment draws, or if it is skipped or fails, the next
+	 * payment is given the same generator in every run with the same seed.
 	 */
 	@Override
 	public void run() {
@@ -100,14 +220,21 @@ public class MoneySender implements MoneyHandlers {
 			System.err.println("Cannot start as other banks 0.");
 			return;
 		}
-		Random random = new Random();
+		thread = Thread.currentThread();
 		active = true;
+		// Waits for the debits once per batch of sends rather than per payment
+		mqi.setSendBarrier(this::awaitDebits);
 		String sendBank = myBank.getSWIFTName();
 		String sendBranch = myBank.getBranchCode();
-		int failC = 0;
 		int seq = 0;
 		Currency currency = myBank.getDefaultCur();
 
+		boolean loadMode = targetTps > 0;
+		if (loadMode) {
+			loadStart = System.nanoTime();
+			nextReport = loadStart + LOAD_REPORT_INTERVAL;
+		}
+
 		System.out.println("Sending thread for bank " + sendBank + " now active.");
 		while (stop == false) {
 			String sendAccount;
@@ -119,58 +246,350 @@ public class MoneySender implements MoneyHandlers {
 			int ammount;
 			String queue;
 
-			// What lucky person will be the sender
-			Account sender = myBank.getRandomAccount();
-			ammount = sender.subRandomMoney();
+			if (loadMode && !awaitNextSend()) {
+				break;
+			}
+
+			SplittableRandom choices = random.split();
+
+			// Find a random bank to send to that is keeping up
+			Bank receiveB = chooseDestination(choices);
+			if (receiveB == null) {
+				break;
+			}
+
+			// What lucky person will be the sender, and who will receive the money
+			Account sender = myBank.getRandomAccount(choices);
+			Account recA = receiveB.getRandomAccount(choices);
+			ammount = sender.subRandomMoney(choices);
 			if (ammount == 0) {
 				// Can't send a zero amount. Person is poor.
-				try {
-					int sleepT = random.nextInt(RATE_MAX - RATE_MIN);
-					sleepT += RATE_MIN;
-					Thread.sleep(sleepT * 1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				if (loadMode) {
+					skipped++;
+				} else {
+					pause(choices);
 				}
 				continue;
 			}
+			// The withdrawal must be in the journal on disk before the money is
+			// seen by the receiver, the transport waits for it, see awaitDebits.
+			try {
+				lastDebit = myBank.journal(sender, Journal.DEBIT, ammount, sessionCode, seq);
+			} catch (IOException e) {
+				System.err.println("Failed to journal payment from " + sendBank + ", returning it.");
+				e.printStackTrace();
+				sender.addMoney(ammount);
+				countFailure();
+				continue;
+			}
 			sendAccount = sender.getNumber();
 			sendName = sender.getName();
 
-			// Find a random bank to send to, fill in the fields
-			Bank receiveB = otherBanks.get(random.nextInt(otherBanks.size()));
+			// Fill in the fields for the bank to send to
 			destBank = receiveB.getSWIFTName();
 			destBranch = receiveB.getBranchCode();
 			queue = receiveB.getqName();
-			Account recA = receiveB.getRandomAccount();
 			destAccount = recA.getNumber();
 			destName = recA.getName();
 
-			// now send the message!
+			// now send the message! Counted as in flight first so the receiver can
+			// never see it before it is counted.
+			receiveB.paymentSent();
 			try {
 				SWIFTcoder coder = new SWIFTcoder(sendBank, sendAccount, sendName, destBank, destAccount, destName,
-						ammount, currency, sendBranch, destBranch, sessionCode, seq);
-				mqi.sendMessage(queue, coder.getMessage());
-
-			} catch (Exception e) {
-				System.err.println("Failed to send money from " + sendBank + " to Queue " + queue);
-				failC++;
-				if (failC > 4) {
-					System.err.println("Failed too many times. Quitting");
-					stop = true;
+						ammount, currency, sendBranch, destBranch, sessionCode, seq, choices);
+				// Timestamp the payment, in load mode with when it was due so a
+				// late send still counts towards its latency.
+				if (loadMode) {
+					recordLag();
+					coder.setSendTime(LatencyHistogram.toEpochMicros(intendedSendTime));
+				} else {
+					coder.setSendTime(LatencyHistogram.nowMicros());
+				}
+				if (bytesMode) {
+					int length = coder.getMessageLength();
+					if (length > sendBuffer.length) {
+						sendBuffer = new byte[length * 2];
+					}
+					length = coder.encode(sendBuffer, 0);
+					mqi.sendMessage(queue, sendBuffer, 0, length);
+					metrics.bytesSent.add(length);
+				} else {
+					String message = coder.getMessage();
+					mqi.sendMessage(queue, message);
+					metrics.bytesSent.add(message.length());
 				}
+				sent++;
+				metrics.messagesSent.increment();
+				sendCommitted(new Payment(sender, receiveB, ammount, seq));
+			} catch (SendsRolledBackException e) {
+				// This payment was in the batch that failed to commit
+				uncommitted.add(new Payment(sender, receiveB, ammount, seq));
+				sendsRolledBack(e);
+			} catch (Exception e) {
+				System.err.println("Failed to send money from " + sendBank + " to Queue " + queue + ", returning it.");
+				receiveB.paymentNotSent();
+				refund(sender, ammount, seq);
+				metrics.sendFailures.increment();
+				metrics.failures.increment();
+				countFailure();
 			}
 			seq++;
 
-			// Sleep before another!
-			try {
-				int sleepT = random.nextInt(RATE_MAX - RATE_MIN);
-				sleepT += RATE_MIN;
-				Thread.sleep(sleepT * 1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if (loadMode) {
+				if (System.nanoTime() - nextReport >= 0) {
+					printLoadStats();
+					nextReport += LOAD_REPORT_INTERVAL;
+				}
+			} else {
+				// Sleep before another!
+				pause(choices);
 			}
 		}
+		flushSends(-1);
+		if (loadMode) {
+			printLoadStats();
+		}
+		if (metrics.getThrottles() > 0 || metrics.getReroutes() > 0) {
+			System.out.println("Flow control for bank " + sendBank + ": throttled[" + metrics.getThrottles()
+					+ "] for[" + metrics.getThrottledMillis() + "ms] rerouted[" + metrics.getReroutes() + "]");
+		}
 		active = false;
+		thread = null;
 		System.out.println("Sending thread for bank " + sendBank + " now stopped.");
 	}
+
+	/**
+	 * Works out when the next payment is due and waits until then. Payments are
+	 * due in bursts of burst payments, one burst every burst / targetTps seconds
+	 * from the start. If the sender is behind it does not wait at all, so a slow
+	 * send does not lower the rate the rest are sent at. Any batched sends that
+	 * would be held for too long while waiting are committed first.
+	 * 
+	 * @return False if signalled to stop while waiting.
+	 */
+	private boolean awaitNextSend() {
+		long burstNumber = scheduled / burst;
+		intendedSendTime = loadStart + (long) (burstNumber * burst * 1e9 / targetTps);
+		scheduled++;
+		long wait = intendedSendTime - System.nanoTime();
+		if (wait <= 0) {
+			return true;
+		}
+		flushSends(TimeUnit.NANOSECONDS.toMillis(wait));
+		while ((wait = intendedSendTime - System.nanoTime()) > 0) {
+			if (stop) {
+				return false;
+			}
+			LockSupport.parkNanos(this, wait);
+		}
+		return true;
+	}
+
+	/**
+	 * Picks a random bank to send to. If it is congested, with too many payments
+	 * sent to it not yet taken by its receiver, another bank that is not
+	 * congested is picked instead if rerouting is on. If there is none the
+	 * sender waits until the first bank picked is no longer congested. Any
+	 * batched sends are committed before waiting, as the receiver cannot take
+	 * them until they are.
+	 * 
+	 * @param random The generator to pick the bank with.
+	 * @return The bank, or null if signalled to stop while waiting.
+	 */
+	private Bank chooseDestination(RandomGenerator random) {
+		int size = otherBanks.size();
+		int first = random.nextInt(size);
+		Bank b = otherBanks.get(first);
+		if (!b.isCongested()) {
+			return b;
+		}
+		if (reroute) {
+			for (int i = 1; i < size; i++) {
+				Bank other = otherBanks.get((first + i) % size);
+				if (!other.isCongested()) {
+					metrics.reroutes.increment();
+					return other;
+				}
+			}
+		}
+		metrics.throttles.increment();
+		long start = System.nanoTime();
+		flushSends(-1);
+		while (b.isCongested() && !stop) {
+			LockSupport.parkNanos(this, THROTTLE_CHECK_INTERVAL);
+		}
+		metrics.throttledNanos.add(System.nanoTime() - start);
+		return stop ? null : b;
+	}
+
+	/**
+	 * Commits any batched sends, or only those that would be held past their batch
+	 * time while the sender is idle for the given time.
+	 * 
+	 * @param idleMillis How long the sender is about to be idle for, -1 to commit
+	 *                   whatever the time.
+	 */
+	private void flushSends(long idleMillis) {
+		try {
+			if (idleMillis < 0) {
+				mqi.flushSends();
+			} else {
+				mqi.flushSendsIfDue(idleMillis);
+			}
+			sendCommitted(null);
+		} catch (SendsRolledBackException e) {
+			sendsRolledBack(e);
+		} catch (Exception e) {
+			System.err.println("Failed to commit sends from " + myBank.getSWIFTName());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Called after a send or flush succeeded. Forgets the uncommitted payments if
+	 * the transport has committed them, otherwise holds on to the payment just
+	 * sent until it is.
+	 * 
+	 * @param payment The payment just sent, or null after a flush.
+	 */
+	private void sendCommitted(Payment payment) {
+		if (mqi.getUncommittedSends() == 0) {
+			uncommitted.clear();
+		} else if (payment != null) {
+			uncommitted.add(payment);
+		}
+	}
+
+	/**
+	 * Returns the money for every payment in a batch that failed to commit to the
+	 * account it was taken from, and stops counting it as in flight to the bank
+	 * it was sent to.
+	 * 
+	 * @param e The exception from the transport.
+	 */
+	private void sendsRolledBack(SendsRolledBackException e) {
+		System.err.println("Batch of " + uncommitted.size() + " payments from " + myBank.getSWIFTName()
+				+ " failed to commit, returning them.");
+		e.printStackTrace();
+		for (Payment p : uncommitted) {
+			p.to.paymentNotSent();
+			refund(p.from, p.amount, p.seq);
+			metrics.sendFailures.increment();
+		}
+		uncommitted.clear();
+		metrics.failures.increment();
+		countFailure();
+	}
+
+	/**
+	 * Waits for every debit journaled so far to be on disk. Passed by the
+	 * transport before each unbatched send and before each batch of sends is
+	 * committed, so one wait covers every payment in a batch. If it fails the
+	 * send fails or the batch is rolled back and the money is returned.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void awaitDebits() throws InterruptedException {
+		myBank.awaitJournal(lastDebit);
+	}
+
+	/**
+	 * Returns the money for a payment that was not sent to the account it was
+	 * taken from. A credit is journaled to balance the debit already journaled.
+	 * 
+	 * @param a      The account the money was taken from.
+	 * @param amount The amount taken.
+	 * @param seq    The sequence number of the payment.
+	 */
+	private void refund(Account a, int amount, int seq) {
+		a.addMoney(amount);
+		try {
+			myBank.awaitJournal(myBank.journal(a, Journal.CREDIT, amount, sessionCode, seq));
+		} catch (Exception e) {
+			System.err.println("Failed to journal the return of a payment from " + myBank.getSWIFTName());
+			e.printStackTrace();
+		}
+	}
+
+	private void countFailure() {
+		failC++;
+		if (failC > 4) {
+			System.err.println("Failed too many times. Quitting");
+			stop = true;
+		}
+	}
+
+	/**
+	 * Records how late the payment about to be sent is compared to when it was
+	 * due.
+	 */
+	private void recordLag() {
+		long lag = System.nanoTime() - intendedSendTime;
+		totalLag += lag;
+		if (lag > maxLag) {
+			maxLag = lag;
+		}
+	}
+
+	/**
+	 * Returns when the payment being sent was due in load mode, as a
+	 * System.nanoTime value.
+	 * 
+	 * @return The intended send time.
+	 */
+	public long getIntendedSendTime() {
+		return intendedSendTime;
+	}
+
+	/**
+	 * Prints the rate aimed for and the rate achieved so far in load mode, with
+	 * the payments sent and skipped and how late they were sent on average and at
+	 * worst.
+	 */
+	public void printLoadStats() {
+		double seconds = (System.nanoTime() - loadStart) / 1e9;
+		double achieved = seconds > 0 ? sent / seconds : 0;
+		long attempts = scheduled - skipped;
+		double averageLag = attempts > 0 ? totalLag / 1e6 / attempts : 0;
+		System.out.println("Load from bank " + myBank.getSWIFTName() + ": target[" + String.format("%.1f", targetTps)
+				+ "/s] achieved[" + String.format("%.1f", achieved) + "/s] sent[" + sent + "] skipped[" + skipped
+				+ "] average lag[" + String.format("%.3f", averageLag) + "ms] max lag["
+				+ String.format("%.3f", maxLag / 1e6) + "ms]");
+	}
+
+	/**
+	 * Sleeps for a random time between RATE_MIN and RATE_MAX seconds, or until
+	 * signalled to stop. Any batched sends that would be held for too long while
+	 * sleeping are committed first.
+	 * 
+	 * @param random The generator to pick the time with.
+	 */
+	private void pause(RandomGenerator random) {
+		int sleepT = random.nextInt(RATE_MAX - RATE_MIN);
+		sleepT += RATE_MIN;
+		flushSends(sleepT * 1000);
+		long wake = System.nanoTime() + TimeUnit.SECONDS.toNanos(sleepT);
+		long wait;
+		while (!stop && (wait = wake - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+		}
+	}
+
+	/**
+	 * A payment sent but not yet committed.
+	 */
+	private static final class Payment {
+		private final Account from;
+		private final Bank to;
+		private final int amount;
+		private final int seq;
+
+		private Payment(Account from, Bank to, int amount, int seq) {
+			this.from = from;
+			this.to = to;
+			this.amount = amount;
+			this.seq = seq;
+		}
+	}
 }
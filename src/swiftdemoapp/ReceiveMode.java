@@ -0,0 +1,62 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * The ways a MoneyReceiver can get messages from its bank queue.
+ */
+public enum ReceiveMode {
+	/**
+	 * The receiver thread repeatedly asks the transport for a message, waiting a
+	 * short time on each call.
+	 */
+	POLL,
+	/**
+	 * The transport pushes each message to the receiver as it arrives.
+	 */
+	ASYNC,
+	/**
+	 * The receiver takes a batch of messages under one unit of work, deposits
+	 * them all and then commits once.
+	 */
+	BATCH,
+	/**
+	 * The receiver thread takes messages from the bank queue and hands each to
+	 * one of several deposit lanes chosen by the destination account, so
+	 * deposits for different accounts are made in parallel while those for the
+	 * same account stay in order.
+	 */
+	LANES;
+
+	/**
+	 * Converts a given String into the receive mode enum.
+	 * 
+	 * @param string The mode string to convert
+	 * @return A receive mode enum.
+	 * @throws Exception
+	 */
+	public static ReceiveMode parse(String string) throws Exception {
+		for (ReceiveMode m : values()) {
+			if (m.name().equalsIgnoreCase(string)) {
+				return m;
+			}
+		}
+		throw new Exception("Unknown receive mode " + string);
+	}
+}
@@ -18,11 +18,16 @@ limitations under the License.
 */
 package swiftdemoapp;
 
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
 /**
  * This class is used to create or parse a SWIFT MT103 message. It contains
@@ -30,6 +35,32 @@ import java.util.Date;
  * message.
  */
 public class SWIFTcoder {
+	// The fixed parts of a MT103 message. All of the message is ASCII so it is
+	// built as bytes.
+	private static final byte[] HEADER1 = ascii("{1:F01");
+	private static final byte[] HEADER2 = ascii("}{2:I103");
+	private static final byte[] HEADER2_END = ascii("N1020}");
+	private static final byte[] HEADER3 = ascii("{3:{113:SEPA}{108:");
+	private static final byte[] SEND_TIME = ascii("}{SDT:");
+	private static final byte[] HEADER3_END = ascii("}}{4\r\n:20:");
+	private static final byte[] OPERATION = ascii("\r\n:23B:CRED\r\n:32A:");
+	private static final byte[] AMOUNT_END = ascii(",00\r\n:50A:/");
+	private static final byte[] RECEIVER = ascii("\r\n:59:/");
+	private static final byte[] REMITTANCE = ascii("\r\n:70:INVOICE ");
+	private static final byte[] CHARGES = ascii("\r\n:71A:SHA\r\n-}\r\n");
+	private static final byte[] FOOTER = ascii("{5:{CHK:");
+	private static final byte[] FOOTER_END = ascii("}}");
+	private static final byte[] HEX = ascii("0123456789abcdef");
+	private static final int CHECKSUM_LENGTH = 32;
+	// Digits of the send time, microseconds since the epoch
+	static final int SEND_TIME_DIGITS = 16;
+
+	// Each thread keeps its own MD5 digest and somewhere to put the result
+	private static final ThreadLocal<Checksummer> checksummers = ThreadLocal.withInitial(Checksummer::new);
+
+	// The YYMMDD date, only worked out again once the day changes
+	private static volatile DateStamp today = new DateStamp();
+
 	private String sendBank;
 	private String sendAccount;
 	private String sendName;
@@ -45,6 +76,8 @@ public class SWIFTcoder {
 
 	private String reference3;
 	private String transactionRefence;
+	// When the payment was sent in microseconds since the epoch, -1 if not set
+	private long sendTime = -1;
 
 	/**
 	 * Generates a random string of a number of characters. Characters can be A-Z
@@ -54,9 +87,20 @@ public class SWIFTcoder {
 	 * @return The random string.
 	 */
 	public static String generateReference(int charcters) {
+		return generateReference(charcters, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Generates a random string of a number of characters with the given
+	 * generator. Characters can be A-Z and 0-9.
+	 * 
+	 * @param charcters number of characters to generate.
+	 * @param random    The generator to pick the characters with.
+	 * @return The random string.
+	 */
+	public static String generateReference(int charcters, RandomGenerator random) {
 		String validChars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
-		StringBuilder sb = new StringBuilder();
-		Random random = new Random();
+		StringBuilder sb = new StringBuilder(charcters);
 		for (int i = 0; i < charcters; i++) {
 			char randomNumber = validChars.charAt(random.nextInt(validChars.length()));
 			sb.append(randomNumber);
@@ -67,6 +111,19 @@ public class SWIFTcoder {
 	public SWIFTcoder(String sendBank, String sendAccount, String sendName, String destBank, String destAccount,
 			String destName, int ammount, Currency currency, String sendBranch, String destBranch, int session,
 			int seq) {
+		this(sendBank, sendAccount, sendName, destBank, destAccount, destName, ammount, currency, sendBranch,
+				destBranch, session, seq, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * Creates a coder for a payment, picking its reference with the given
+	 * generator so the same generator gives the same references.
+	 * 
+	 * @param random The generator to pick the reference with.
+	 */
+	public SWIFTcoder(String sendBank, String sendAccount, String sendName, String destBank, String destAccount,
+			String destName, int ammount, Currency currency, String sendBranch, String destBranch, int session,
+			int seq, RandomGenerator random) {
 		this.sendBank = sendBank;
 		this.sendAccount = sendAccount;
 		this.sendName = sendName;
@@ -80,7 +137,7 @@ public class SWIFTcoder {
 
 		this.session = intToStrPlace(session, 4);
 		this.seq = intToStrPlace(seq, 6);
-		this.reference3 = generateReference(16);
+		this.reference3 = generateReference(16, random);
 		this.transactionRefence = sendName.substring(0, 3).toUpperCase() + "TO" + destName.substring(0, 3).toUpperCase()
 				+ seq;
 	}
@@ -99,14 +156,15 @@ public class SWIFTcoder {
 		String current = String.valueOf(in);
 		int diff = places - current.length();
 		if (diff < 0) {
-			current = current.substring(1, current.length());
-		} else {
-			while (diff != 0) {
-				current = "0" + current;
-				diff--;
-			}
+			return current.substring(1, current.length());
+		}
+		if (diff == 0) {
+			return current;
 		}
-		return current;
+		char[] padded = new char[places];
+		Arrays.fill(padded, 0, diff, '0');
+		current.getChars(0, current.length(), padded, diff);
+		return new String(padded);
 	}
 
 	/**
@@ -117,30 +175,38 @@ public class SWIFTcoder {
 	 * @throws Exception
 	 */
 	public SWIFTcoder(String message) throws Exception {
+		this(new SWIFTview().wrap(message));
+	}
 
-		String splitted[] = message.split("\r\n");
+	/**
+	 * Creates a SWIFTcoder object holding every field of the message a SWIFTview
+	 * is currently wrapping.
+	 * 
+	 * @param view The view of the message.
+	 * @throws Exception
+	 */
+	public SWIFTcoder(SWIFTview view) throws Exception {
 		// Header
-		sendBank = splitted[0].substring(6, 14);
-		sendBranch = splitted[0].substring(15, 18);
-		session = splitted[0].substring(18, 22);
-		seq = splitted[0].substring(22, 28);
-		destBank = splitted[0].substring(36, 44);
-		destBranch = splitted[0].substring(45, 48);
-		reference3 = splitted[0].substring(72, 88);
+		sendBank = view.getSendBank();
+		sendBranch = view.getSendBranch();
+		session = view.getSession();
+		seq = view.getSeq();
+		destBank = view.getDestBank();
+		destBranch = view.getDestBranch();
+		reference3 = view.getReference3();
+		sendTime = view.getSendTime();
 
 		// User data
-		transactionRefence = splitted[1].substring(4);
+		transactionRefence = view.getTransactionReference();
 
-		currency = Currency.parse(splitted[3].substring(11, 14));
-		ammount = Integer.parseInt(splitted[3].substring(14, splitted[3].indexOf(',', 14)));
+		currency = view.getCurrency();
+		ammount = view.getAmmount();
 
-		String accSplit[] = splitted[4].substring(6).split(" ");
-		sendAccount = accSplit[0];
-		sendName = accSplit[1];
+		sendAccount = view.getSendAccount();
+		sendName = view.getSendName();
 
-		String accSplit2[] = splitted[5].substring(5).split(" ");
-		destAccount = accSplit2[0];
-		destName = accSplit2[1];
+		destAccount = view.getDestAccount();
+		destName = view.getDestName();
 	}
 
 	/**
@@ -151,47 +217,185 @@ public class SWIFTcoder {
 	 * @throws NoSuchAlgorithmException
 	 */
 	public String getMessage() throws NoSuchAlgorithmException {
+		byte[] buffer = new byte[getMessageLength()];
+		int length = encode(buffer, 0);
+		return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the number of bytes the SWIFT MT103 message for this object will
+	 * take. Use to size the buffer given to encode.
+	 * 
+	 * @return The message length in bytes.
+	 */
+	public int getMessageLength() {
+		return HEADER1.length + sendBank.length() + 1 + sendBranch.length() + session.length() + seq.length()
+				+ HEADER2.length + destBank.length() + 1 + destBranch.length() + HEADER2_END.length
+				+ HEADER3.length + reference3.length() + (sendTime < 0 ? 0 : SEND_TIME.length + SEND_TIME_DIGITS)
+				+ HEADER3_END.length + transactionRefence.length()
+				+ OPERATION.length + 6 + currency.getSwiftCode().length() + intLength(ammount) + AMOUNT_END.length
+				+ sendAccount.length() + 1 + sendName.length() + RECEIVER.length + destAccount.length() + 1
+				+ destName.length() + REMITTANCE.length + seq.length() + CHARGES.length + FOOTER.length
+				+ CHECKSUM_LENGTH + FOOTER_END.length;
+	}
+
+	/**
+	 * Writes the SWIFT MT103 message for this object into the given buffer without
+	 * creating any objects. The output is the same as getMessage. All of the
+	 * fields must be ASCII.
+	 * 
+	 * @param buffer Where to write the message. Must have at least
+	 *               getMessageLength bytes free after offset.
+	 * @param offset Where in the buffer to start writing.
+	 * @return The number of bytes written.
+	 * @throws NoSuchAlgorithmException
+	 */
+	public int encode(byte[] buffer, int offset) throws NoSuchAlgorithmException {
+		if (buffer.length - offset < getMessageLength()) {
+			throw new IllegalArgumentException("Buffer too small for message.");
+		}
+		int pos = offset;
 		// Header 1
-		String swiftMessage = "{1:F01" + sendBank + "Z" + sendBranch + session + seq + "}";
+		pos = put(buffer, pos, HEADER1);
+		pos = put(buffer, pos, sendBank);
+		buffer[pos++] = 'Z';
+		pos = put(buffer, pos, sendBranch);
+		pos = put(buffer, pos, session);
+		pos = put(buffer, pos, seq);
 		// Header 2
-		swiftMessage += "{2:I103" + destBank + "X" + destBranch + "N1020}";
+		pos = put(buffer, pos, HEADER2);
+		pos = put(buffer, pos, destBank);
+		buffer[pos++] = 'X';
+		pos = put(buffer, pos, destBranch);
+		pos = put(buffer, pos, HEADER2_END);
 		// Header 3
-		swiftMessage += "{3:{113:SEPA}{108:" + reference3 + "}}";
+		pos = put(buffer, pos, HEADER3);
+		pos = put(buffer, pos, reference3);
+		if (sendTime >= 0) {
+			pos = put(buffer, pos, SEND_TIME);
+			pos = putFixed(buffer, pos, sendTime, SEND_TIME_DIGITS);
+		}
 		// User data
-		swiftMessage += "{4\r\n"; // splitted[0]
 		// - Transaction
-		swiftMessage += ":20:" + transactionRefence + "\r\n"; // splitted[1]
-
+		pos = put(buffer, pos, HEADER3_END);
+		pos = put(buffer, pos, transactionRefence);
 		// - Operation code
-		swiftMessage += ":23B:CRED\r\n"; // splitted[2]
-
 		// - Value: DATE (YYMMDD), Currency, Amount
-		String amountS = String.valueOf(ammount);
-		if (amountS.endsWith(".")) {
-			amountS += "00";
-		}
-
-		amountS = amountS.replace('.', ',');
-		swiftMessage += ":32A:" + getDate() + currency.getSwiftCode() + amountS + ",00\r\n"; // splitted[3]
-
+		pos = put(buffer, pos, OPERATION);
+		pos = put(buffer, pos, getDateStamp().bytes);
+		pos = put(buffer, pos, currency.getSwiftCode());
+		pos = putInt(buffer, pos, ammount);
 		// - Sender Customer number and Name
-		swiftMessage += ":50A:/" + sendAccount + " " + sendName + "\r\n"; // splitted[4]
-
+		pos = put(buffer, pos, AMOUNT_END);
+		pos = put(buffer, pos, sendAccount);
+		buffer[pos++] = ' ';
+		pos = put(buffer, pos, sendName);
 		// - Receive Customer number and Name
-		swiftMessage += ":59:/" + destAccount + " " + destName + "\r\n"; // splitted[5]
-
+		pos = put(buffer, pos, RECEIVER);
+		pos = put(buffer, pos, destAccount);
+		buffer[pos++] = ' ';
+		pos = put(buffer, pos, destName);
 		// - Details of Remittance
-		swiftMessage += ":70:INVOICE " + seq + "\r\n";// splitted[6]
-
+		pos = put(buffer, pos, REMITTANCE);
+		pos = put(buffer, pos, seq);
 		// - Details of charges
-		swiftMessage += ":71A:SHA\r\n"; // splitted[7]
 		// - End
-		swiftMessage += "-}\r\n"; // splitted[8]
+		pos = put(buffer, pos, CHARGES);
 		// Footer
-		String checksum = generateCheckSum(swiftMessage);
-		swiftMessage += "{5:{CHK:" + checksum + "}}"; // splitted[9]
+		int end = pos;
+		pos = put(buffer, pos, FOOTER);
+		pos = generateCheckSum(buffer, offset, end - offset, buffer, pos);
+		pos = put(buffer, pos, FOOTER_END);
+		return pos - offset;
+	}
+
+	/**
+	 * Writes the MD5 checksum of part of a message as 32 lower case hex digits,
+	 * as used in the {5:{CHK:}} footer. Package visible for the benchmarks.
+	 * 
+	 * @param message Buffer holding the message.
+	 * @param offset  Where the message starts.
+	 * @param length  The number of bytes to checksum.
+	 * @param out     Where to write the checksum. May be the message buffer if the
+	 *                ranges do not overlap.
+	 * @param pos     Where in out to write the checksum.
+	 * @return The position after the checksum.
+	 * @throws NoSuchAlgorithmException
+	 */
+	static int generateCheckSum(byte[] message, int offset, int length, byte[] out, int pos)
+			throws NoSuchAlgorithmException {
+		return putHex(out, pos, checksummers.get().digest(message, offset, length));
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
 
-		return swiftMessage;
+	private static int put(byte[] buffer, int pos, byte[] bytes) {
+		System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	private static int put(byte[] buffer, int pos, String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			buffer[pos++] = (byte) s.charAt(i);
+		}
+		return pos;
+	}
+
+	private static int putHex(byte[] buffer, int pos, byte[] bytes) {
+		for (byte b : bytes) {
+			buffer[pos++] = HEX[(b >> 4) & 0xf];
+			buffer[pos++] = HEX[b & 0xf];
+		}
+		return pos;
+	}
+
+	/**
+	 * Writes the decimal digits of a number, the same as String.valueOf.
+	 */
+	private static int putInt(byte[] buffer, int pos, int value) {
+		long v = value;
+		if (v < 0) {
+			buffer[pos++] = '-';
+			v = -v;
+		}
+		int end = pos + intLength(v);
+		int i = end;
+		do {
+			buffer[--i] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+		return end;
+	}
+
+	/**
+	 * Writes a positive number as exactly the given number of digits, padded with
+	 * leading zeros.
+	 */
+	private static int putFixed(byte[] buffer, int pos, long value, int digits) {
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+	/**
+	 * Returns the number of characters String.valueOf gives for a number.
+	 */
+	private static int intLength(long value) {
+		int length = 1;
+		if (value < 0) {
+			length++;
+			value = -value;
+		}
+		while (value >= 10) {
+			value /= 10;
+			length++;
+		}
+		return length;
 	}
 
 	public String getSendBank() {
@@ -250,6 +454,33 @@ public class SWIFTcoder {
 		this.ammount = ammount;
 	}
 
+	public String getSession() {
+		return session;
+	}
+
+	public String getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Returns when the payment was sent.
+	 * 
+	 * @return Microseconds since the epoch or -1 if not set.
+	 */
+	public long getSendTime() {
+		return sendTime;
+	}
+
+	/**
+	 * Sets when the payment was sent. It is carried in header 3 of the message as
+	 * a {SDT:} field after the {108:} reference.
+	 * 
+	 * @param sendTime Microseconds since the epoch or -1 to leave it out.
+	 */
+	public void setSendTime(long sendTime) {
+		this.sendTime = sendTime;
+	}
+
 	public Currency getCurrency() {
 		return currency;
 	}
@@ -264,41 +495,75 @@ public class SWIFTcoder {
 	 * @return Returns a date string in the format YYMMDD
 	 */
 	public String getDate() {
-		SimpleDateFormat formatter = new SimpleDateFormat("yyMMdd");
-		Date date = new Date();
-		String formattedDate = formatter.format(date);
-		return formattedDate;
+		return getDateStamp().text;
+	}
+
+	private static DateStamp getDateStamp() {
+		DateStamp stamp = today;
+		if (System.currentTimeMillis() >= stamp.expires) {
+			stamp = new DateStamp();
+			today = stamp;
+		}
+		return stamp;
 	}
 
-	// Assisted by WCA@IBM
-	// Latest GenAI contribution: ibm/granite-20b-code-
 	/**
-	 * Generates a MD5 checksum of a given string.
-	 * 
-	 * @param in The string to create the checksum for.
-	 * @return The MD5 checksum.
-	 * @throws NoSuchAlgorithmException
+	 * Holds today's date as YYMMDD and the time it stops being today.
 	 */
-	private String generateCheckSum(String in) throws NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("MD5");
-		byte[] digest = md.digest(in.getBytes());
-		return toHexString(digest);
+	private static final class DateStamp {
+		private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyMMdd");
+
+		private final String text;
+		private final byte[] bytes;
+		private final long expires;
+
+		private DateStamp() {
+			ZoneId zone = ZoneId.systemDefault();
+			LocalDate date = LocalDate.now(zone);
+			text = date.format(FORMAT);
+			bytes = ascii(text);
+			expires = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+		}
 	}
 
-	// Assisted by WCA@IBM
-	// Latest GenAI contribution: ibm/granite-20b-code-
 	/**
-	 * Converts the given byte array into a Hex string representation.
-	 * 
-	 * @param bytes The byte array to convert
-	 * @return The hex string.
+	 * A MD5 digest and a buffer for its result, one per thread so neither has to
+	 * be created for each message.
 	 */
-	private static String toHexString(byte[] bytes) {
-		StringBuilder builder = new StringBuilder();
-		for (byte b : bytes) {
-			builder.append(String.format("%02x", b));
+	private static final class Checksummer {
+		private final MessageDigest md;
+		private final byte[] result;
+		private final NoSuchAlgorithmException failure;
+
+		private Checksummer() {
+			MessageDigest digest = null;
+			NoSuchAlgorithmException failed = null;
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				failed = e;
+			}
+			md = digest;
+			failure = failed;
+			result = new byte[md == null ? 0 : md.getDigestLength()];
+		}
+
+		/**
+		 * Returns the MD5 digest of the given bytes. The returned array is reused by
+		 * the next call on this thread.
+		 */
+		private byte[] digest(byte[] bytes, int offset, int length) throws NoSuchAlgorithmException {
+			if (md == null) {
+				throw failure;
+			}
+			md.update(bytes, offset, length);
+			try {
+				md.digest(result, 0, result.length);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			return result;
 		}
-		return builder.toString();
 	}
 
 	/**
@@ -309,7 +574,7 @@ public class SWIFTcoder {
 				+ "destBank[" + destBank + "] " + "destAccount[" + destAccount + "] " + "destName[" + destName + "] "
 				+ "ammount[" + ammount + "] " + "currency[" + currency + "] " + "sendBranch[" + sendBranch + "] "
 				+ "destBranch[" + destBranch + "] " + "session[" + session + "] " + "seq[" + seq + "] " + "reference3["
-				+ reference3 + "] " + "transactionRefence[" + transactionRefence + "]";
+				+ reference3 + "] " + "sendTime[" + sendTime + "] " + "transactionRefence[" + transactionRefence + "]";
 		System.out.println(out);
 	}
 
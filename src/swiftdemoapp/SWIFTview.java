@@ -0,0 +1,514 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable, read only view over a SWIFT MT103 message. Wrapping a message
+ * scans it once and records where each field is. Nothing is copied out of the
+ * message until a getter asks for it, so a receiver that only needs the
+ * destination account and amount does not pay for the other fields.
+ * 
+ * A view can wrap either a String or the ASCII bytes of a message. A view is
+ * not thread safe, each thread should keep its own.
+ */
+public class SWIFTview {
+	private CharSequence message;
+	// Reused to read a byte[] message as characters
+	private final AsciiSequence bytes = new AsciiSequence();
+
+	// Where the lines of the message start and end
+	private int transactionStart;
+	private int transactionEnd;
+	private int valueStart;
+	private int amountEnd;
+	private int sendAccountStart;
+	private int sendAccountEnd;
+	private int sendNameEnd;
+	private int destAccountStart;
+	private int destAccountEnd;
+	private int destNameEnd;
+
+	// Fields already turned into Strings for the current message
+	private String sendBank;
+	private String sendName;
+	private String destBank;
+	private String destAccount;
+	private String destName;
+
+	/**
+	 * Points this view at a new message, scanning it for the field positions.
+	 * 
+	 * @param message The SWIFT MT103 message.
+	 * @return This view.
+	 * @throws Exception If the message is not a valid MT103 message.
+	 */
+	public SWIFTview wrap(CharSequence message) throws Exception {
+		this.message = null;
+		sendBank = null;
+		sendName = null;
+		destBank = null;
+		destAccount = null;
+		destName = null;
+
+		int length = message.length();
+		int lineStart = 0;
+		int line = 0;
+		for (int i = 0; i <= length && line < 6; i++) {
+			// Lines end with CRLF, the last line may end with the message instead
+			if (i < length && (i + 1 == length || message.charAt(i) != '\r' || message.charAt(i + 1) != '\n')) {
+				continue;
+			}
+			switch (line) {
+			case 0:
+				if (i < 88) {
+					throw new Exception("MT103 header too short.");
+				}
+				break;
+			case 1:
+				if (i - lineStart < 4) {
+					throw new Exception("MT103 transaction reference missing.");
+				}
+				transactionStart = lineStart + 4;
+				transactionEnd = i;
+				break;
+			case 3:
+				valueStart = lineStart;
+				amountEnd = indexOf(message, ',', lineStart + 14, i);
+				if (i - lineStart < 14 || amountEnd < 0) {
+					throw new Exception("MT103 value field invalid.");
+				}
+				break;
+			case 4:
+				sendAccountStart = lineStart + 6;
+				sendAccountEnd = indexOf(message, ' ', sendAccountStart, i);
+				sendNameEnd = nameEnd(message, sendAccountEnd, i);
+				break;
+			case 5:
+				destAccountStart = lineStart + 5;
+				destAccountEnd = indexOf(message, ' ', destAccountStart, i);
+				destNameEnd = nameEnd(message, destAccountEnd, i);
+				break;
+			default:
+				break;
+			}
+			line++;
+			lineStart = i + 2;
+			i++;
+		}
+		if (line < 6) {
+			throw new Exception("MT103 message has too few lines.");
+		}
+		this.message = message;
+		return this;
+	}
+
+	/**
+	 * Points this view at a new message held as ASCII bytes. The bytes must not be
+	 * changed while the view is in use.
+	 * 
+	 * @param message Buffer holding the SWIFT MT103 message.
+	 * @param offset  Where the message starts in the buffer.
+	 * @param length  The length of the message.
+	 * @return This view.
+	 * @throws Exception If the message is not a valid MT103 message.
+	 */
+	public SWIFTview wrap(byte[] message, int offset, int length) throws Exception {
+		bytes.set(message, offset, length);
+		return wrap(bytes);
+	}
+
+	/**
+	 * Returns a new view of a copy of the message this view is wrapping, using the
+	 * field positions already found instead of scanning the message again. The
+	 * new view can be handed to another thread while this one moves on to the
+	 * next message.
+	 * 
+	 * @param message A copy of the wrapped message that will not change.
+	 * @return The new view.
+	 */
+	public SWIFTview copy(CharSequence message) {
+		return new SWIFTview().copyFrom(this, message);
+	}
+
+	/**
+	 * Returns a new view of a copy of the message this view is wrapping held as
+	 * ASCII bytes, using the field positions already found.
+	 * 
+	 * @param message Buffer holding a copy of the wrapped message that will not
+	 *                change.
+	 * @param offset  Where the message starts in the buffer.
+	 * @param length  The length of the message.
+	 * @return The new view.
+	 */
+	public SWIFTview copy(byte[] message, int offset, int length) {
+		SWIFTview v = new SWIFTview();
+		v.bytes.set(message, offset, length);
+		return v.copyFrom(this, v.bytes);
+	}
+
+	private SWIFTview copyFrom(SWIFTview v, CharSequence message) {
+		if (v.message == null) {
+			throw new IllegalStateException("No message wrapped.");
+		}
+		if (message.length() != v.message.length()) {
+			throw new IllegalArgumentException("Copy is not the same length as the message.");
+		}
+		transactionStart = v.transactionStart;
+		transactionEnd = v.transactionEnd;
+		valueStart = v.valueStart;
+		amountEnd = v.amountEnd;
+		sendAccountStart = v.sendAccountStart;
+		sendAccountEnd = v.sendAccountEnd;
+		sendNameEnd = v.sendNameEnd;
+		destAccountStart = v.destAccountStart;
+		destAccountEnd = v.destAccountEnd;
+		destNameEnd = v.destNameEnd;
+		sendBank = v.sendBank;
+		sendName = v.sendName;
+		destBank = v.destBank;
+		destAccount = v.destAccount;
+		destName = v.destName;
+		this.message = message;
+		return this;
+	}
+
+	private static int indexOf(CharSequence s, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (s.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the end of the name following an account number. Only the first word
+	 * of the name is used.
+	 */
+	private static int nameEnd(CharSequence s, int space, int lineEnd) throws Exception {
+		if (space < 0) {
+			throw new Exception("MT103 account has no name.");
+		}
+		int end = indexOf(s, ' ', space + 1, lineEnd);
+		if (end < 0) {
+			end = lineEnd;
+		}
+		if (end == space + 1) {
+			// Only a blank name is an error if there is nothing following it
+			for (int i = end; i < lineEnd; i++) {
+				if (s.charAt(i) != ' ') {
+					return end;
+				}
+			}
+			throw new Exception("MT103 account has no name.");
+		}
+		return end;
+	}
+
+	private String text(int start, int end) {
+		if (message == null) {
+			throw new IllegalStateException("No message wrapped.");
+		}
+		if (message == bytes) {
+			return bytes.substring(start, end);
+		}
+		return message.subSequence(start, end).toString();
+	}
+
+	public String getSendBank() {
+		if (sendBank == null) {
+			sendBank = text(6, 14);
+		}
+		return sendBank;
+	}
+
+	public String getSendBranch() {
+		return text(15, 18);
+	}
+
+	public String getSession() {
+		return text(18, 22);
+	}
+
+	public String getSeq() {
+		return text(22, 28);
+	}
+
+	/**
+	 * Returns the session number, read straight from the message.
+	 * 
+	 * @return The session number.
+	 */
+	public int getSessionNumber() {
+		return Integer.parseInt(message, 18, 22, 10);
+	}
+
+	/**
+	 * Returns the sequence number, read straight from the message.
+	 * 
+	 * @return The sequence number.
+	 */
+	public int getSeqNumber() {
+		return Integer.parseInt(message, 22, 28, 10);
+	}
+
+	public String getDestBank() {
+		if (destBank == null) {
+			destBank = text(36, 44);
+		}
+		return destBank;
+	}
+
+	public String getDestBranch() {
+		return text(45, 48);
+	}
+
+	public String getReference3() {
+		return text(72, 88);
+	}
+
+	/**
+	 * Returns when the payment was sent, read from the {SDT:} field in header 3
+	 * straight after the {108:} reference.
+	 * 
+	 * @return Microseconds since the epoch or -1 if the message does not have a
+	 *         valid send time.
+	 */
+	public long getSendTime() {
+		int start = 94;
+		int end = start + SWIFTcoder.SEND_TIME_DIGITS;
+		if (transactionStart < end || message.charAt(89) != '{' || message.charAt(90) != 'S'
+				|| message.charAt(91) != 'D' || message.charAt(92) != 'T' || message.charAt(93) != ':'
+				|| message.charAt(end) != '}') {
+			return -1;
+		}
+		long time = 0;
+		for (int i = start; i < end; i++) {
+			char c = message.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			time = time * 10 + (c - '0');
+		}
+		return time;
+	}
+
+	public String getTransactionReference() {
+		return text(transactionStart, transactionEnd);
+	}
+
+	public String getSendAccount() {
+		return text(sendAccountStart, sendAccountEnd);
+	}
+
+	public String getSendName() {
+		if (sendName == null) {
+			sendName = text(sendAccountEnd + 1, sendNameEnd);
+		}
+		return sendName;
+	}
+
+	public String getDestAccount() {
+		if (destAccount == null) {
+			destAccount = text(destAccountStart, destAccountEnd);
+		}
+		return destAccount;
+	}
+
+	/**
+	 * Returns the first 2 digits of the destination account number as a number,
+	 * read straight from the message.
+	 * 
+	 * @return The packed high part or -1 if not a valid account number.
+	 */
+	public int getDestAccountHigh() {
+		return AccountIndex.packHigh(message, destAccountStart, destAccountEnd);
+	}
+
+	/**
+	 * Returns the last 18 digits of the destination account number as a number,
+	 * read straight from the message.
+	 * 
+	 * @return The packed low part or -1 if not a valid account number.
+	 */
+	public long getDestAccountLow() {
+		return AccountIndex.packLow(message, destAccountStart, destAccountEnd);
+	}
+
+	public String getDestName() {
+		if (destName == null) {
+			destName = text(destAccountEnd + 1, destNameEnd);
+		}
+		return destName;
+	}
+
+	/**
+	 * Returns the amount, read straight from the message.
+	 * 
+	 * @return The amount.
+	 * @throws NumberFormatException If the amount is not a number.
+	 */
+	public int getAmmount() {
+		if (message == null) {
+			throw new IllegalStateException("No message wrapped.");
+		}
+		return Integer.parseInt(message, valueStart + 14, amountEnd, 10);
+	}
+
+	/**
+	 * Returns the currency, read straight from the message.
+	 * 
+	 * @return The currency.
+	 * @throws Exception If the currency is unknown.
+	 */
+	public Currency getCurrency() throws Exception {
+		if (message == null) {
+			throw new IllegalStateException("No message wrapped.");
+		}
+		int start = valueStart + 11;
+		for (Currency c : Currency.values()) {
+			String code = c.getSwiftCode();
+			if (regionMatchesIgnoreCase(code, start)) {
+				return c;
+			}
+		}
+		throw new Exception("Unknown currency " + text(start, start + 3));
+	}
+
+	private boolean regionMatchesIgnoreCase(String code, int start) {
+		if (code.length() != 3) {
+			return false;
+		}
+		for (int i = 0; i < 3; i++) {
+			if (Character.toUpperCase(message.charAt(start + i)) != Character.toUpperCase(code.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Prints out a summary of the wrapped message, the same as
+	 * SWIFTcoder.summarize.
+	 * 
+	 * @throws Exception
+	 */
+	public void summarize() throws Exception {
+		StringBuilder out = new StringBuilder(64);
+		out.append(message, 6, 14).append('/').append(message, sendAccountEnd + 1, sendNameEnd).append('/')
+				.append(getAmmount()).append(",00").append(getCurrency().getSwiftCode()).append("->")
+				.append(message, 36, 44).append('/').append(message, destAccountEnd + 1, destNameEnd);
+		System.out.println(out);
+	}
+
+	/**
+	 * Writes the same summary as summarize into a byte array as ASCII, without
+	 * creating any objects. The currency is copied from the message as it is. A
+	 * summary longer than the space left in the array is cut short.
+	 * 
+	 * @param out    Where to write the summary.
+	 * @param offset Where in the array to start writing.
+	 * @return The position after the summary.
+	 */
+	public int summarize(byte[] out, int offset) {
+		if (message == null) {
+			throw new IllegalStateException("No message wrapped.");
+		}
+		int pos = offset;
+		pos = copy(out, pos, 6, 14);
+		pos = put(out, pos, '/');
+		pos = copy(out, pos, sendAccountEnd + 1, sendNameEnd);
+		pos = put(out, pos, '/');
+		pos = copy(out, pos, valueStart + 14, amountEnd);
+		pos = put(out, pos, ',');
+		pos = put(out, pos, '0');
+		pos = put(out, pos, '0');
+		pos = copy(out, pos, valueStart + 11, valueStart + 14);
+		pos = put(out, pos, '-');
+		pos = put(out, pos, '>');
+		pos = copy(out, pos, 36, 44);
+		pos = put(out, pos, '/');
+		pos = copy(out, pos, destAccountEnd + 1, destNameEnd);
+		return pos;
+	}
+
+	private int copy(byte[] out, int pos, int start, int end) {
+		for (int i = start; i < end && pos < out.length; i++) {
+			out[pos++] = (byte) message.charAt(i);
+		}
+		return pos;
+	}
+
+	private static int put(byte[] out, int pos, char c) {
+		if (pos < out.length) {
+			out[pos++] = (byte) c;
+		}
+		return pos;
+	}
+
+	/**
+	 * Presents part of a byte array holding ASCII as characters without copying.
+	 */
+	private static final class AsciiSequence implements CharSequence {
+		private byte[] buffer;
+		private int offset;
+		private int length;
+
+		private void set(byte[] buffer, int offset, int length) {
+			if (offset < 0 || length < 0 || offset + length > buffer.length) {
+				throw new IndexOutOfBoundsException("Invalid message bounds.");
+			}
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException(index);
+			}
+			return (char) (buffer[offset + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return substring(start, end);
+		}
+
+		private String substring(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException("Invalid range " + start + " to " + end);
+			}
+			return new String(buffer, offset + start, end - start, StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public String toString() {
+			return substring(0, length);
+		}
+	}
+}
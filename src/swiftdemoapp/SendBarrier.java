@@ -0,0 +1,35 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * Passed by a MessageTransport before the messages sent through it can be
+ * seen on their queues, so a sender can make sure of something first, for
+ * example that the money sent is journaled, once for a whole batch of sends.
+ */
+public interface SendBarrier {
+	/**
+	 * Called on the sending thread before a message sent without batching is
+	 * put, and before each batch of sends is committed.
+	 * 
+	 * @throws Exception If the sends must not be seen. The send fails, or the
+	 *                   batch is rolled back.
+	 */
+	public void pass() throws Exception;
+}
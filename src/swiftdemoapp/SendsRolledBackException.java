@@ -0,0 +1,50 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+/**
+ * Thrown by a transport when a batch of sends fails to commit. Every message
+ * sent since the last successful commit, including the one being sent if it
+ * was thrown from sendMessage, has been rolled back and will not arrive.
+ */
+public class SendsRolledBackException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final int messages;
+
+	/**
+	 * Creates the exception.
+	 * 
+	 * @param messages The number of messages rolled back.
+	 * @param cause    Why the commit failed.
+	 */
+	public SendsRolledBackException(int messages, Throwable cause) {
+		super(messages + " uncommitted sends were rolled back", cause);
+		this.messages = messages;
+	}
+
+	/**
+	 * Returns the number of messages rolled back.
+	 * 
+	 * @return Messages rolled back.
+	 */
+	public int getMessages() {
+		return messages;
+	}
+}
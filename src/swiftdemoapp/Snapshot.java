@@ -0,0 +1,374 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Saves every bank and its accounts to a compact binary file and restores them
+ * from it, so a restart does not have to open the accounts again or replay a
+ * whole journal.
+ * 
+ * The file is a header followed by each bank's details and its accounts, each
+ * account is the packed account number, the balance and the holder's name, and
+ * a CRC32C of everything before it at the end. It is written in one pass
+ * through a small buffer to a temporary file that then replaces the old
+ * snapshot, so there is always a complete snapshot on disk. It is read back
+ * through memory mapped windows of the file.
+ * 
+ * Each balance is read atomically, but while payments are being made they
+ * keep moving between accounts as the snapshot is written. Only a snapshot
+ * written while the senders and receivers are stopped is an exact point in
+ * time, and only then is each bank's journal position saved so that a restart
+ * replays just the journal records written after it.
+ */
+public class Snapshot {
+
+	/**
+	 * Makes the account store for a bank being restored.
+	 */
+	public interface StoreFactory {
+		/**
+		 * Returns the store for the bank with the given SWIFT name. If it already
+		 * holds accounts they are kept and the snapshot's accounts are not loaded.
+		 * 
+		 * @param swiftname The bank's SWIFT name.
+		 * @return The store.
+		 * @throws Exception
+		 */
+		AccountStore create(String swiftname) throws Exception;
+	}
+
+	private static final int MAGIC = 0x534E4150; // SNAP
+	private static final int VERSION = 1;
+	// Size of the write buffer and of each mapped window when reading
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+	// Largest account record, packed number, balance and a name of the longest
+	// length allowed
+	private static final int MAX_ACCOUNT_SIZE = 1 + 8 + 8 + 2 + Short.MAX_VALUE;
+
+	private final Path file;
+	private final List<Bank> banks;
+	private Thread writer = null;
+	// Held while writing, the periodic and final snapshots share the temporary
+	// file
+	private final Object writeLock = new Object();
+
+	/**
+	 * Creates a snapshot of the given banks, to be written to a file.
+	 * 
+	 * @param file  The snapshot file.
+	 * @param banks The banks to save.
+	 */
+	public Snapshot(Path file, List<Bank> banks) {
+		this.file = file;
+		this.banks = banks;
+	}
+
+	/**
+	 * Starts a daemon thread writing the snapshot every interval.
+	 * 
+	 * @param seconds Seconds between snapshots, 0 for none.
+	 */
+	public synchronized void start(long seconds) {
+		if (writer != null || seconds <= 0) {
+			return;
+		}
+		writer = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					write(false);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "Snapshot writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the thread writing snapshots.
+	 */
+	public synchronized void stop() {
+		if (writer != null) {
+			writer.interrupt();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Writes every bank and its accounts to the snapshot file, replacing the
+	 * last snapshot.
+	 * 
+	 * @param stopped True if no payments are being made, so the snapshot is an
+	 *                exact point in time and the journal positions are saved.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void write(boolean stopped) throws IOException {
+		synchronized (writeLock) {
+			long start = System.nanoTime();
+			Path temp = Paths.get(file.toString() + ".tmp");
+			long accounts = 0;
+			long bytes;
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				Writer out = new Writer(channel);
+				out.buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(banks.size());
+				for (Bank b : banks) {
+					out.ensure(5 * (2 + Short.MAX_VALUE) + 8 + 4);
+					out.putString(b.getName());
+					out.putString(b.getSWIFTName());
+					out.putString(b.getqName());
+					out.putString(b.getDefaultCur().getSwiftCode());
+					out.putString(b.getBranchCode());
+					out.buffer.putLong(stopped ? b.getJournalPosition() : -1);
+					// Accounts opened after this are left for the next snapshot
+					int count = b.getAccountCount();
+					out.buffer.putInt(count);
+					for (int i = 0; i < count; i++) {
+						Account a = b.getAccount(i);
+						String number = a.getNumber();
+						out.ensure(MAX_ACCOUNT_SIZE);
+						out.buffer.put((byte) AccountIndex.packHigh(number, 0, number.length()))
+								.putLong(AccountIndex.packLow(number, 0, number.length())).putLong(a.getBalance());
+						out.putString(a.getName());
+					}
+					accounts += count;
+				}
+				bytes = out.finish();
+				channel.force(true);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Wrote snapshot of " + banks.size() + " banks and " + accounts + " accounts, "
+					+ bytes + " bytes, in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+		}
+	}
+
+	/**
+	 * Creates the banks saved in a snapshot file with their accounts and
+	 * balances. The file is checked before any bank is created.
+	 * 
+	 * @param file     The snapshot file.
+	 * @param stores   Makes the account store for each bank.
+	 * @param workload Gives each bank the same generator it is given when it
+	 *                 is created new.
+	 * @return The banks in the order they were saved.
+	 * @throws Exception If the file is not a complete snapshot or a bank cannot
+	 *                   be created.
+	 */
+	public static ArrayList<Bank> restore(Path file, StoreFactory stores, WorkloadRandom workload)
+			throws Exception {
+		long start = System.nanoTime();
+		ArrayList<Bank> restored = new ArrayList<Bank>();
+		long accounts = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Reader in = new Reader(channel);
+			in.verify(file);
+			in.ensure(20);
+			if (in.buffer.getInt() != MAGIC || in.buffer.getInt() != VERSION) {
+				throw new Exception(file + " is not a snapshot.");
+			}
+			in.buffer.getLong(); // When it was written
+			int bankCount = in.buffer.getInt();
+			for (int n = 0; n < bankCount; n++) {
+				String name = in.getString();
+				String swiftname = in.getString();
+				String qname = in.getString();
+				Currency cur = Currency.parse(in.getString());
+				String branchCode = in.getString();
+				in.ensure(12);
+				long journalPosition = in.buffer.getLong();
+				int count = in.buffer.getInt();
+
+				AccountStore store = stores.create(swiftname);
+				boolean load = store.size() == 0;
+				Bank b = new Bank(name, swiftname, cur, qname, store, workload.forStream("bank " + swiftname));
+				b.setBranchCode(branchCode);
+				if (load) {
+					b.setSnapshotPosition(journalPosition);
+				} else {
+					System.out.println("Keeping the " + store.size() + " accounts already held for bank " + swiftname
+							+ ", not the snapshot's.");
+				}
+				for (int i = 0; i < count; i++) {
+					in.ensure(17);
+					int high = in.buffer.get();
+					long low = in.buffer.getLong();
+					long balance = in.buffer.getLong();
+					String holder = in.getString();
+					if (load) {
+						b.restoreAccount(holder, AccountIndex.unpack(high, low), balance);
+					}
+				}
+				if (load) {
+					accounts += count;
+				}
+				restored.add(b);
+			}
+		}
+		System.out.println("Restored " + restored.size() + " banks and " + accounts + " accounts from snapshot in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+		return restored;
+	}
+
+	/**
+	 * Fills a buffer and writes it to the file when it is full, adding what is
+	 * written to the checksum.
+	 */
+	private static final class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final CRC32C crc = new CRC32C();
+		private long written = 0;
+
+		private Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Makes room in the buffer for the given number of bytes.
+		 */
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			crc.update(buffer.duplicate());
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		private void putString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > Short.MAX_VALUE) {
+				throw new IOException("String too long for a snapshot.");
+			}
+			buffer.putShort((short) bytes.length).put(bytes);
+		}
+
+		/**
+		 * Writes what is left in the buffer followed by the checksum.
+		 * 
+		 * @return The size of the file.
+		 */
+		private long finish() throws IOException {
+			flush();
+			buffer.putLong(crc.getValue()).flip();
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			return written;
+		}
+	}
+
+	/**
+	 * Reads a file through a memory mapped window that is moved along the file
+	 * as it is read.
+	 */
+	private static final class Reader {
+		private final FileChannel channel;
+		// End of the data, the checksum follows it
+		private final long end;
+		private MappedByteBuffer buffer;
+		// File position of the start of the window
+		private long windowStart = 0;
+
+		private Reader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			end = channel.size() - 8;
+			buffer = map(0);
+		}
+
+		private MappedByteBuffer map(long position) throws IOException {
+			windowStart = position;
+			return channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.max(0, Math.min(WINDOW_SIZE, end - position)));
+		}
+
+		/**
+		 * Checks the checksum at the end of the file matches the data before it.
+		 */
+		private void verify(Path file) throws Exception {
+			if (end < 0) {
+				throw new Exception(file + " is not a complete snapshot.");
+			}
+			CRC32C crc = new CRC32C();
+			for (long position = 0; position < end; position += WINDOW_SIZE) {
+				crc.update(map(position));
+			}
+			ByteBuffer stored = ByteBuffer.allocate(8);
+			while (stored.hasRemaining()) {
+				if (channel.read(stored, end + stored.position()) < 0) {
+					throw new Exception(file + " is not a complete snapshot.");
+				}
+			}
+			if (stored.getLong(0) != crc.getValue()) {
+				throw new Exception(file + " is damaged, its checksum does not match.");
+			}
+			buffer = map(0);
+		}
+
+		/**
+		 * Moves the window so the given number of bytes can be read from it.
+		 */
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				long position = windowStart + buffer.position();
+				if (end - position < bytes) {
+					throw new IOException("Snapshot ends in the middle of a record.");
+				}
+				buffer = map(position);
+			}
+		}
+
+		private String getString() throws IOException {
+			ensure(2);
+			int length = buffer.getShort();
+			ensure(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
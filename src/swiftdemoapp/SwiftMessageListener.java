@@ -0,0 +1,48 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interface for objects that want SWIFT messages pushed to them by a
+ * MessageTransport as they arrive rather than polling for them.
+ */
+public interface SwiftMessageListener {
+	/**
+	 * Called by the transport for each message that arrives on the queue the
+	 * listener is registered for. Called on a thread owned by the transport.
+	 * 
+	 * @param message The received message.
+	 */
+	public void onMessage(String message);
+
+	/**
+	 * Called by the transport for each message that arrived as bytes. The bytes
+	 * are only valid until this method returns. By default the bytes are turned
+	 * into a String and passed to onMessage(String).
+	 * 
+	 * @param message Buffer holding the message.
+	 * @param offset  Where the message starts in the buffer.
+	 * @param length  The length of the message.
+	 */
+	public default void onMessage(byte[] message, int offset, int length) {
+		onMessage(new String(message, offset, length, StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,88 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The kinds of thread the MoneySenders and MoneyReceivers can be run on.
+ */
+public enum ThreadMode {
+	/**
+	 * Each handler gets its own operating system thread.
+	 */
+	PLATFORM,
+	/**
+	 * Each handler gets its own virtual thread, so blocking in a sleep or a
+	 * receive does not hold an operating system thread. Needs Java 21 or later.
+	 */
+	VIRTUAL;
+
+	/**
+	 * Converts a given String into the thread mode enum.
+	 * 
+	 * @param string The mode string to convert
+	 * @return A thread mode enum.
+	 * @throws Exception
+	 */
+	public static ThreadMode parse(String string) throws Exception {
+		for (ThreadMode m : values()) {
+			if (m.name().equalsIgnoreCase(string)) {
+				return m;
+			}
+		}
+		throw new Exception("Unknown thread mode " + string);
+	}
+
+	/**
+	 * Creates an executor that runs each task given to it on a new thread of this
+	 * kind. If virtual threads are not available in this Java they fall back to
+	 * platform threads and a warning is printed.
+	 * 
+	 * @return The executor.
+	 */
+	public ExecutorService newExecutor() {
+		if (this == VIRTUAL) {
+			// Looked up at run time so this still builds and runs on Java 17
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) m.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("Virtual threads need Java 21 or later, using platform threads instead.");
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Returns whether this Java can run virtual threads.
+	 * 
+	 * @return True if virtual threads are available.
+	 */
+	public static boolean virtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
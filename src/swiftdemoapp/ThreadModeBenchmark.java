@@ -0,0 +1,122 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares running many banks' handlers on platform threads against virtual
+ * threads. Each simulated handler works like a MoneySender, sleeping between
+ * payments and passing each payment through an in memory queue to a receiving
+ * handler, so nearly all of its time is spent blocked.
+ * 
+ * Usage: ThreadModeBenchmark [banks] [payments per bank] [pause ms] [modes...]
+ * By default 1000 banks each make 50 payments 10 ms apart on both kinds of
+ * thread.
+ */
+public class ThreadModeBenchmark {
+
+	public static void main(String[] args) {
+		int banks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int payments = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		long pauseMillis = args.length > 2 ? Long.parseLong(args[2]) : 10;
+		try {
+			if (args.length > 3) {
+				for (int i = 3; i < args.length; i++) {
+					run(ThreadMode.parse(args[i]), banks, payments, pauseMillis);
+				}
+			} else {
+				for (ThreadMode mode : ThreadMode.values()) {
+					run(mode, banks, payments, pauseMillis);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs a sender and a receiver for each bank on an executor of the given mode
+	 * and prints how long it took, the payments made per second and the most
+	 * threads that were alive at once.
+	 */
+	private static void run(ThreadMode mode, int banks, int payments, long pauseMillis) throws Exception {
+		if (mode == ThreadMode.VIRTUAL && !ThreadMode.virtualThreadsAvailable()) {
+			System.out.println(mode + ": skipped, virtual threads need Java 21 or later.");
+			return;
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		InMemoryQueueManager qmgr = new InMemoryQueueManager(payments);
+		AtomicLong received = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(banks * 2);
+
+		ExecutorService executor = mode.newExecutor();
+		long start = System.nanoTime();
+		for (int b = 0; b < banks; b++) {
+			String queue = "BANK" + b + ".Q";
+			executor.execute(() -> {
+				try {
+					MessageTransport t = new InMemoryTransport(qmgr);
+					t.createConnection();
+					for (int p = 0; p < payments; p++) {
+						Thread.sleep(pauseMillis);
+						t.sendMessage(queue, "payment " + p);
+					}
+					t.closeConnection();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				done.countDown();
+			});
+			executor.execute(() -> {
+				try {
+					MessageTransport t = new InMemoryTransport(qmgr);
+					t.createConnection();
+					int got = 0;
+					while (got < payments) {
+						String message = t.receiveMessage(queue);
+						if (message != null && !message.equals("")) {
+							got++;
+						}
+					}
+					received.addAndGet(got);
+					t.closeConnection();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				done.countDown();
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+
+		double seconds = elapsed / 1e9;
+		System.out.println(mode + ": banks[" + banks + "] payments[" + received.get() + "] time["
+				+ String.format("%.2f", seconds) + "s] rate[" + String.format("%.0f", received.get() / seconds)
+				+ "/s] peak threads[" + threads.getPeakThreadCount() + "]");
+	}
+}
@@ -0,0 +1,75 @@
+/*
+Copyright (c) Rob Parker 2024
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at:
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ Contributors:
+   Rob Parker - Initial Contribution
+*/
+package swiftdemoapp;
+
+import java.util.SplittableRandom;
+
+/**
+ * The source of every random choice the demo makes, from one master seed. Each
+ * bank and each sender is given its own generator, named after what it is
+ * for, so no two threads share one and runs with the same seed make the same
+ * choices whatever order the banks are built or the threads started in.
+ * 
+ * The generators are SplittableRandoms, which are not safe to share between
+ * threads. A thread that hands work to others splits its generator for them.
+ */
+public class WorkloadRandom {
+	private final long seed;
+
+	/**
+	 * Creates a workload source with a seed that is different every run.
+	 */
+	public WorkloadRandom() {
+		this(new SplittableRandom().nextLong());
+	}
+
+	/**
+	 * Creates a workload source with the given seed.
+	 * 
+	 * @param seed The master seed.
+	 */
+	public WorkloadRandom(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the master seed, so a run can be repeated.
+	 * 
+	 * @return The seed.
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns a new generator for the given name. The same seed and name always
+	 * give a generator making the same numbers.
+	 * 
+	 * @param name What the generator is for, for example "sender BANKROBE".
+	 * @return The generator, for use by one thread at a time.
+	 */
+	public SplittableRandom forStream(String name) {
+		// FNV-1a over the name, SplittableRandom mixes the result itself
+		long h = seed ^ 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h = (h ^ name.charAt(i)) * 0x100000001b3L;
+		}
+		return new SplittableRandom(h);
+	}
+}